@@ -0,0 +1,51 @@
+/*
+ * This file is part of Rice.
+ * © Copyright Massimo Neri 2014 <hello@mneri.me>
+ *
+ * Rice is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rice is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rice. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package me.mneri.rice;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * How long a connection waits before trying to reconnect. Attempts are counted from 1 and start over once the
+ * connection registers again.
+ */
+public interface BackoffPolicy {
+	public static final long STOP = -1;
+
+	// Milliseconds to wait before the given attempt, or STOP to give up
+	public long delay(int attempt);
+
+	// Exponential backoff with full jitter: a random delay up to base * 2^(attempt - 1), but never more than cap
+	public static BackoffPolicy exponential(long base, long cap) {
+		if (base < 1 || cap < base)
+			throw new IllegalArgumentException("The base must be positive and not greater than the cap.");
+
+		return attempt -> {
+			long ceiling = base;
+
+			for (int i = 1; i < attempt && ceiling < cap; i++)
+				ceiling *= 2;
+
+			return ThreadLocalRandom.current().nextLong(Math.min(ceiling, cap) + 1);
+		};
+	}
+
+	public static BackoffPolicy fixed(long delay) {
+		return attempt -> delay;
+	}
+}
@@ -0,0 +1,261 @@
+/*
+ * This file is part of Rice.
+ * © Copyright Massimo Neri 2014 <hello@mneri.me>
+ *
+ * Rice is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rice is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rice. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package me.mneri.rice;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Records every raw line a {@link Connection} receives and sends to a compact binary log, for debugging and for
+ * {@link Replay}. Lines are appended to an in-memory buffer under a short lock and written out by a thread of the
+ * capture, so the I/O threads never wait for the disk; when the buffer is full lines are dropped and counted instead.
+ *
+ * The log starts with {@code path} and rotates to {@code path.1}, {@code path.2} and so on when a file reaches its
+ * maximum size, deleting the oldest files beyond the maximum count. Every file begins with the magic number
+ * {@code RCAP} and a version, then holds records made of the length of the line (4 bytes), its direction (1 byte),
+ * the time in nanoseconds since the epoch (8 bytes) and the line itself without terminator, all big-endian. Use
+ * {@link CaptureReader} to read them.
+ */
+public class Capture implements Closeable {
+	public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+	public static final long DEFAULT_FILE_SIZE = 64 * 1024 * 1024;
+
+	static final int HEADER_SIZE = 8;
+	static final int MAGIC = 0x52434150;
+	static final int RECORD_HEADER_SIZE = 13;
+	static final int VERSION = 1;
+
+	// Written out at least this often even when little is captured
+	private static final long FLUSH_INTERVAL = 100;
+
+	private ByteBuffer mActive;
+	// Nanoseconds since the epoch when System.nanoTime() was zero
+	private final long mClockBase;
+	private volatile boolean mClosed;
+	private long mDropped;
+	private FileChannel mFile;
+	private int mFileIndex;
+	private long mFileSize;
+	private final int mMaxFiles;
+	private final long mMaxFileSize;
+	private final Path mPath;
+	private long mRecords;
+	private ByteBuffer mSpare;
+	private final Thread mWriter;
+
+	public enum Direction {
+		INBOUND, OUTBOUND
+	}
+
+	public Capture(Path path) throws IOException {
+		this(path, DEFAULT_FILE_SIZE, 0, DEFAULT_BUFFER_SIZE);
+	}
+
+	// A maxFiles of zero keeps every file
+	public Capture(Path path, long maxFileSize, int maxFiles, int bufferSize) throws IOException {
+		if (maxFileSize <= HEADER_SIZE)
+			throw new IllegalArgumentException("The maximum file size is too small.");
+
+		mActive = ByteBuffer.allocate(bufferSize);
+		mClockBase = System.currentTimeMillis() * 1000000 - System.nanoTime();
+		mMaxFiles = maxFiles;
+		mMaxFileSize = maxFileSize;
+		mPath = path;
+		mSpare = ByteBuffer.allocate(bufferSize);
+		open();
+
+		mWriter = new Thread(this::loop, "rice-capture");
+		mWriter.setDaemon(true);
+		mWriter.start();
+	}
+
+	// Write out what was captured and stop capturing
+	@Override
+	public void close() {
+		synchronized (this) {
+			mClosed = true;
+			notifyAll();
+		}
+
+		if (Thread.currentThread() != mWriter) {
+			try {
+				mWriter.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	static Path file(Path path, int index) {
+		return (index == 0 ? path : path.resolveSibling(path.getFileName() + "." + index));
+	}
+
+	// Lines lost because the buffer was full or the log couldn't be written
+	public synchronized long getDropped() {
+		return mDropped;
+	}
+
+	public synchronized long getRecords() {
+		return mRecords;
+	}
+
+	private void loop() {
+		try {
+			for (;;) {
+				ByteBuffer batch;
+
+				synchronized (this) {
+					if (!mClosed && mActive.position() < mActive.capacity() / 2)
+						wait(FLUSH_INTERVAL);
+
+					if (mActive.position() == 0) {
+						if (mClosed)
+							break;
+
+						continue;
+					}
+
+					batch = mActive;
+					mActive = mSpare;
+					mSpare = batch;
+				}
+
+				batch.flip();
+				write(batch);
+				batch.clear();
+			}
+		} catch (IOException | InterruptedException e) {
+			synchronized (this) {
+				mClosed = true;
+			}
+		} finally {
+			try {
+				mFile.close();
+			} catch (IOException ignored) { }
+		}
+	}
+
+	private void open() throws IOException {
+		mFile = FileChannel.open(file(mPath, mFileIndex), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION);
+		header.flip();
+
+		while (header.hasRemaining())
+			mFile.write(header);
+
+		mFileSize = HEADER_SIZE;
+	}
+
+	void record(Direction direction, byte[] buffer, int offset, int length, long time) {
+		synchronized (this) {
+			if (mClosed || mActive.remaining() < RECORD_HEADER_SIZE + length) {
+				mDropped++;
+				return;
+			}
+
+			mActive.putInt(length).put((byte) direction.ordinal()).putLong(time).put(buffer, offset, length);
+			mRecords++;
+
+			if (mActive.position() >= mActive.capacity() / 2)
+				notifyAll();
+		}
+	}
+
+	// Record an outgoing line, stamped with the time it's due to be sent
+	void record(ByteBuffer line, long delay) {
+		int start = line.position();
+		int end = line.limit();
+
+		while (end > start && (line.get(end - 1) == '\n' || line.get(end - 1) == '\r'))
+			end--;
+
+		long time = time() + delay * 1000000;
+
+		if (line.hasArray()) {
+			record(Direction.OUTBOUND, line.array(), line.arrayOffset() + start, end - start, time);
+		} else {
+			byte[] bytes = new byte[end - start];
+			ByteBuffer view = line.duplicate();
+			view.position(start);
+			view.get(bytes);
+			record(Direction.OUTBOUND, bytes, 0, bytes.length, time);
+		}
+	}
+
+	// Record an incoming line
+	void record(byte[] buffer, int offset, int length) {
+		record(Direction.INBOUND, buffer, offset, length, time());
+	}
+
+	private void rotate() throws IOException {
+		mFile.close();
+
+		if (mMaxFiles > 0 && mFileIndex + 1 >= mMaxFiles)
+			Files.deleteIfExists(file(mPath, mFileIndex + 1 - mMaxFiles));
+
+		mFileIndex++;
+		open();
+	}
+
+	private long time() {
+		return mClockBase + System.nanoTime();
+	}
+
+	// Write whole records, moving to a new file when the next one wouldn't fit
+	private void write(ByteBuffer batch) throws IOException {
+		int limit = batch.limit();
+
+		while (batch.position() < limit) {
+			int end = batch.position();
+
+			while (end < limit) {
+				int size = RECORD_HEADER_SIZE + batch.getInt(end);
+
+				if (mFileSize + (end - batch.position()) + size > mMaxFileSize)
+					break;
+
+				end += size;
+			}
+
+			if (end == batch.position()) {
+				if (mFileSize > HEADER_SIZE) {
+					rotate();
+					continue;
+				}
+
+				// A record larger than a whole file gets a file of its own
+				end += RECORD_HEADER_SIZE + batch.getInt(end);
+			}
+
+			batch.limit(end);
+			mFileSize += batch.remaining();
+
+			while (batch.hasRemaining())
+				mFile.write(batch);
+
+			batch.limit(limit);
+		}
+	}
+}
@@ -0,0 +1,188 @@
+/*
+ * This file is part of Rice.
+ * © Copyright Massimo Neri 2014 <hello@mneri.me>
+ *
+ * Rice is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rice is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rice. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package me.mneri.rice;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Reads the records of a file written by {@link Capture}, one at a time. The file is memory-mapped a window at a time.
+ * A record cut short at the end of the file, as left by a crash, ends the file.
+ *
+ * Run as a program it prints the captures named on the command line, one record per line, marking incoming lines with
+ * {@code <} and outgoing ones with {@code >}.
+ */
+public class CaptureReader implements Closeable {
+	private static final long WINDOW = 64 * 1024 * 1024;
+
+	private final FileChannel mChannel;
+	private Capture.Direction mDirection;
+	private ByteBuffer mLine;
+	private final long mSize;
+	private long mTime;
+	private ByteBuffer mWindow;
+	private long mWindowStart;
+
+	public CaptureReader(Path path) throws IOException {
+		mChannel = FileChannel.open(path, StandardOpenOption.READ);
+		mSize = mChannel.size();
+
+		try {
+			map(0, 0);
+
+			if (mWindow.remaining() < Capture.HEADER_SIZE || mWindow.getInt() != Capture.MAGIC)
+				throw new IOException(path + " is not a capture.");
+
+			if (mWindow.getInt() != Capture.VERSION)
+				throw new IOException(path + " was written by an unknown version.");
+		} catch (IOException e) {
+			mChannel.close();
+			throw e;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		mChannel.close();
+	}
+
+	// The files of a capture that still exist, oldest first
+	public static List<Path> files(Path path) throws IOException {
+		Path directory = path.toAbsolutePath().getParent();
+		String name = path.getFileName().toString();
+		TreeMap<Integer, Path> files = new TreeMap<>();
+
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+			for (Path file : stream) {
+				String fileName = file.getFileName().toString();
+
+				if (fileName.equals(name)) {
+					files.put(0, file);
+				} else if (fileName.startsWith(name + ".")) {
+					try {
+						int index = Integer.parseInt(fileName.substring(name.length() + 1));
+
+						if (index > 0)
+							files.put(index, file);
+					} catch (NumberFormatException ignored) { }
+				}
+			}
+		}
+
+		return new ArrayList<>(files.values());
+	}
+
+	public Capture.Direction getDirection() {
+		return mDirection;
+	}
+
+	// A copy of the current line
+	public byte[] getLine() {
+		ByteBuffer line = line();
+		byte[] bytes = new byte[line.remaining()];
+		line.get(bytes);
+		return bytes;
+	}
+
+	// Nanoseconds since the epoch
+	public long getTimestamp() {
+		return mTime;
+	}
+
+	// The current line, as a view over the mapped file that is only valid until the next record
+	ByteBuffer line() {
+		return mLine.duplicate();
+	}
+
+	public static void main(String[] args) throws IOException {
+		PrintStream out = new PrintStream(System.out, false, "UTF-8");
+
+		for (String arg : args) {
+			for (Path file : files(Paths.get(arg))) {
+				try (CaptureReader reader = new CaptureReader(file)) {
+					while (reader.next()) {
+						long time = reader.getTimestamp();
+						out.print(Instant.ofEpochSecond(Math.floorDiv(time, 1000000000), Math.floorMod(time, 1000000000)));
+						out.print(reader.getDirection() == Capture.Direction.INBOUND ? " < " : " > ");
+						out.println(new String(reader.getLine(), StandardCharsets.UTF_8));
+					}
+				}
+			}
+		}
+
+		out.flush();
+	}
+
+	// Map a window starting at position and holding at least length bytes
+	private void map(long position, int length) throws IOException {
+		mWindowStart = position;
+		mWindow = mChannel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(Math.max(WINDOW, length),
+				mSize - position));
+		mLine = mWindow.duplicate();
+	}
+
+	// Move to the next record; false at the end of the file
+	public boolean next() throws IOException {
+		if (mWindow.remaining() < Capture.RECORD_HEADER_SIZE) {
+			// A window can end in the middle of a record
+			if (mWindowStart + mWindow.limit() == mSize)
+				return false;
+
+			map(mWindowStart + mWindow.position(), 0);
+
+			// The file itself ends in the middle of a record header
+			if (mWindow.remaining() < Capture.RECORD_HEADER_SIZE)
+				return false;
+		}
+
+		int length = mWindow.getInt(mWindow.position());
+
+		if (length < 0 || mWindowStart + mWindow.position() + Capture.RECORD_HEADER_SIZE + length > mSize)
+			return false;
+
+		if (mWindow.remaining() < Capture.RECORD_HEADER_SIZE + length)
+			map(mWindowStart + mWindow.position(), Capture.RECORD_HEADER_SIZE + length);
+
+		int ordinal = mWindow.get(mWindow.position() + 4);
+
+		if (ordinal < 0 || ordinal >= Capture.Direction.values().length)
+			throw new IOException("Corrupted capture.");
+
+		mDirection = Capture.Direction.values()[ordinal];
+		mTime = mWindow.getLong(mWindow.position() + 5);
+		int start = mWindow.position() + Capture.RECORD_HEADER_SIZE;
+		mLine.limit(start + length).position(start);
+		mWindow.position(start + length);
+
+		return true;
+	}
+}
@@ -18,6 +18,8 @@
 
 package me.mneri.rice;
 
+import java.util.Arrays;
+
 public class Commands {
 	//@formatter:off
 	public static final String ADMIN        = "ADMIN";
@@ -233,4 +235,102 @@ public class Commands {
 	public static final String ERR_SASLALREADY       = "907";
 	public static final String RPL_SASLMECH          = "908";
 	//@formatter:on
+
+	// Numerics are coded by their value, verbs follow in the order below
+	public static final int UNKNOWN = -1;
+	public static final int CODE_COUNT;
+
+	private static final int NUMERIC_COUNT = 1000;
+
+	private static final String[] VERBS = {
+			ADMIN, AUTHENTICATE, AWAY, CAP, ERROR, HELP, INFO, INVITE, ISON, JOIN, KICK, KILL, LINKS, LIST, LUSERS, MODE,
+			MOTD, NAMES, NICK, NOTICE, OPER, PART, PASS, PING, PONG, PRIVMSG, QUIT, SERVLIST, SQUERY, SQUIT, STATS, TIME,
+			TOPIC, TRACE, USER, USERHOST, USERS, VERSION, WALLOPS, WHO, WHOIS, WHOWAS
+	};
+
+	private static final String[] NUMERICS = new String[NUMERIC_COUNT];
+	private static final int[] VERB_TABLE = new int[128];
+
+	static {
+		// Interning makes the canonical numerics the very same instances as the constants above
+		for (int i = 0; i < NUMERIC_COUNT; i++)
+			NUMERICS[i] = String.format("%03d", i).intern();
+
+		// Open addressing on String.hashCode(), which for ASCII is also what hash(byte[], int, int) computes
+		Arrays.fill(VERB_TABLE, UNKNOWN);
+
+		for (int i = 0; i < VERBS.length; i++) {
+			int slot = firstSlot(VERBS[i].hashCode());
+
+			while (VERB_TABLE[slot] != UNKNOWN)
+				slot = nextSlot(slot);
+
+			VERB_TABLE[slot] = i;
+		}
+
+		CODE_COUNT = NUMERIC_COUNT + VERBS.length;
+	}
+
+	public static String canonical(int code) {
+		if (code < 0 || code >= CODE_COUNT)
+			return null;
+
+		return (code < NUMERIC_COUNT ? NUMERICS[code] : VERBS[code - NUMERIC_COUNT]);
+	}
+
+	public static int code(byte[] buffer, int offset, int length) {
+		if (length == 3 && isDigit(buffer[offset]) && isDigit(buffer[offset + 1]) && isDigit(buffer[offset + 2]))
+			return (buffer[offset] - '0') * 100 + (buffer[offset + 1] - '0') * 10 + (buffer[offset + 2] - '0');
+
+		int hash = 0;
+
+		for (int i = offset; i < offset + length; i++)
+			hash = 31 * hash + buffer[i];
+
+		for (int slot = firstSlot(hash); VERB_TABLE[slot] != UNKNOWN; slot = nextSlot(slot)) {
+			String verb = VERBS[VERB_TABLE[slot]];
+
+			if (regionMatches(verb, buffer, offset, length))
+				return NUMERIC_COUNT + VERB_TABLE[slot];
+		}
+
+		return UNKNOWN;
+	}
+
+	public static int code(String command) {
+		if (command.length() == 3 && isDigit(command.charAt(0)) && isDigit(command.charAt(1))
+				&& isDigit(command.charAt(2)))
+			return (command.charAt(0) - '0') * 100 + (command.charAt(1) - '0') * 10 + (command.charAt(2) - '0');
+
+		for (int slot = firstSlot(command.hashCode()); VERB_TABLE[slot] != UNKNOWN; slot = nextSlot(slot)) {
+			if (VERBS[VERB_TABLE[slot]].equals(command))
+				return NUMERIC_COUNT + VERB_TABLE[slot];
+		}
+
+		return UNKNOWN;
+	}
+
+	private static int firstSlot(int hash) {
+		return hash & (VERB_TABLE.length - 1);
+	}
+
+	private static boolean isDigit(int c) {
+		return c >= '0' && c <= '9';
+	}
+
+	private static int nextSlot(int slot) {
+		return (slot + 1) & (VERB_TABLE.length - 1);
+	}
+
+	private static boolean regionMatches(String s, byte[] buffer, int offset, int length) {
+		if (s.length() != length)
+			return false;
+
+		for (int i = 0; i < length; i++) {
+			if (s.charAt(i) != buffer[offset + i])
+				return false;
+		}
+
+		return true;
+	}
 }
@@ -20,25 +20,24 @@ package me.mneri.rice;
 
 import static me.mneri.rice.Commands.*;
 
-import java.io.OutputStreamWriter;
-import java.net.Socket;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
-import java.security.KeyStore;
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLSocket;
-import javax.net.ssl.SSLSocketFactory;
-import javax.net.ssl.TrustManagerFactory;
 
 import me.mneri.rice.ctcp.CTCP;
 import me.mneri.rice.dcc.DCC;
@@ -46,21 +45,28 @@ import me.mneri.rice.event.Event;
 import me.mneri.rice.event.EventEmitter;
 import me.mneri.rice.filter.Filter;
 import me.mneri.rice.filter.IgnoreFilter;
+import me.mneri.rice.filter.RawFilter;
 import me.mneri.rice.flood.FloodController;
 import me.mneri.rice.flood.StandardFloodController;
+import me.mneri.rice.net.CachingResolver;
+import me.mneri.rice.net.Resolver;
 import me.mneri.rice.store.MemoryStoreFactory;
 import me.mneri.rice.store.StoreFactory;
 import me.mneri.rice.text.CaseMapping;
 import me.mneri.rice.text.StringBundler;
+import me.mneri.rice.text.StringCache;
 import me.mneri.rice.text.TextUtils;
 
 import org.apache.commons.codec.binary.Base64;
 
 public class Connection extends EventEmitter {
 	public static final String BOUNCE = "BOUNCE";
+	public static final String CIRCUIT_OPEN = "CIRCUIT_OPEN";
 	public static final String CLOSE = "CLOSE";
 	public static final String CONNECT = "CONNECT";
 	public static final String NEW_CONVERSATION = "NEW_CONVERSATION";
+	public static final String RECONNECT = "RECONNECT";
+	public static final String RECONNECT_STOP = "RECONNECT_STOP";
 	public static final String REGISTER = "REGISTER";
 	public static final String REMOVE_CONVERSATION = "REMOVE_CONVERSATION";
 	public static final String START = "START";
@@ -75,16 +81,24 @@ public class Connection extends EventEmitter {
 					"znc.in/server-time-iso"
 			)));
 
+	// RFC 1459 line length, terminator included
+	private static final int MAX_LINE_LENGTH = 512;
+
+	// Protocol traffic that must not wait behind chat: it skips the flood delay and the lines already queued
+	private static final String[] URGENT_COMMANDS = { AUTHENTICATE, CAP, NICK, PING, PONG, QUIT };
+
 	public final CTCP ctcp;
 	public final DCC dcc;
 
 	private boolean mAutoBounce;
 	private List<String> mAutoJoin;
 	private boolean mAutoNickChange;
-	private int mAutoReconnectTimeout;
+	private BackoffPolicy mBackoff;
 	private Set<Character> mAvailChannelModes = new HashSet<>();
 	private Set<String> mCapabilities = new HashSet<>();
+	private Capture mCapture;
 	private CaseMapping mCaseMapping = CaseMapping.RFC1459;
+	private Connector mConnector;
 	private LinkedHashMap<String, Conversation> mConversations = new LinkedHashMap<>();
 	private String mCurrentHost;
 	private Charset mEncoding;
@@ -97,35 +111,57 @@ public class Connection extends EventEmitter {
 	private String mHostIrcdVersion;
 	private IgnoreFilter mIgnoreFilter = new IgnoreFilter();
 	private boolean mIsupportCompilant;
-	private InputThread mInputThread;
+	// Registered, but the channels haven't been joined yet
+	private boolean mJoinPending;
+	private LineEncoder mLineEncoder;
 	private String mLoginMode;
+	private int mMaxLineLength;
 	private String mNetwork;
 	private String mNick;
-	private OutputInterface mOutputInterface;
+	private volatile OutputInterface mOutputInterface;
+	private OverflowPolicy mOverflowPolicy;
 	private String mPass;
 	private int mPort;
+	private ArrayList<RawFilter> mRawFilters = new ArrayList<>();
+	private Reactor mReactor;
+	private int mReadBufferSize;
 	private String mReal;
+	private int mReconnectAttempt;
+	private int mReconnectLimit;
+	private long mReconnectOpenTime;
+	private volatile Object mReconnectToken;
+	private Replay mReplay;
 	private boolean mSecure;
 	private int mSoTimeout;
-	private Socket mSocket;
+	private SSLContext mSslContext;
 	private State mState = State.CLOSED;
+	private StringCache mStringCache;
+	// Targets the server takes in one line, by command, from TARGMAX and MAXTARGETS
+	private ConcurrentHashMap<String, Integer> mTargetLimits = new ConcurrentHashMap<>();
+	private ThreadMode mThreadMode;
+	private volatile Transport mTransport;
 	private String mUser;
 	private HashMap<Character, Boolean> mUserMode = new HashMap<>();
 	private HashMap<String, User> mUsers = new HashMap<>();
 	private Set<String> mWantedCapabilities;
 	private String mWantedNick;
+	private WriterTopology mWriterTopology;
 
 	public enum State {
 		CLOSED, STARTED, CONNECTED, REGISTERED
 	}
 
 	public static class Builder {
+		private static final int DEFAULT_CONNECT_TIMEOUT = 30 * 1000;
+		private static final Resolver DEFAULT_RESOLVER = new CachingResolver(Resolver.SYSTEM);
 		private static final int DEFAULT_SOCKET_TIMEOUT = 5 * 60 * 1000;
 
 		private boolean mAutoBounce = true;
 		private List<String> mAutoJoin = new ArrayList<>();
 		private boolean mAutoNickChange = true;
-		private int mAutoReconnectTimeout = -1;
+		private BackoffPolicy mBackoff;
+		private Capture mCapture;
+		private int mConnectTimeout;
 		private Charset mEncoding;
 		private HashMap<String, Object> mExtras = new HashMap<>();
 		private StoreFactory<Message> mFactory;
@@ -134,14 +170,26 @@ public class Connection extends EventEmitter {
 		private String mHost;
 		private HashSet<String> mIgnores = new HashSet<>();
 		private String mLoginMode;
+		private int mMaxLineLength = LineReader.DEFAULT_MAX_LINE_LENGTH;
 		private String mNick;
+		private OverflowPolicy mOverflowPolicy = OverflowPolicy.TRUNCATE;
 		private String mPass;
 		private int mPort;
+		private Reactor mReactor;
+		private int mReadBufferSize = LineReader.DEFAULT_BUFFER_SIZE;
 		private String mReal;
+		private int mReconnectLimit;
+		private long mReconnectOpenTime = -1;
+		private Replay mReplay;
+		private Resolver mResolver;
 		private boolean mSecure;
 		private int mSoTimeout;
+		private SSLContext mSslContext;
+		private StringCache mStringCache = StringCache.DEFAULT;
+		private ThreadMode mThreadMode = ThreadMode.PLATFORM;
 		private String mUser;
 		private Set<String> mWantedCapabilities;
+		private WriterTopology mWriterTopology = WriterTopology.shared();
 
 		public Builder autoBounce(boolean bounce) {
 			mAutoBounce = bounce;
@@ -164,7 +212,12 @@ public class Connection extends EventEmitter {
 		}
 
 		public Builder autoReconnect(int timeout) {
-			mAutoReconnectTimeout = timeout;
+			mBackoff = (timeout >= 0 ? BackoffPolicy.fixed(timeout) : null);
+			return this;
+		}
+
+		public Builder autoReconnect(BackoffPolicy policy) {
+			mBackoff = policy;
 			return this;
 		}
 
@@ -177,25 +230,46 @@ public class Connection extends EventEmitter {
 			connection.mAutoBounce = mAutoBounce;
 			connection.mAutoJoin = mAutoJoin;
 			connection.mAutoNickChange = mAutoNickChange;
-			connection.mAutoReconnectTimeout = mAutoReconnectTimeout;
+			connection.mBackoff = mBackoff;
+			connection.mCapture = mCapture;
+			connection.mConnector = new Connector((mResolver != null ? mResolver : DEFAULT_RESOLVER),
+					(mConnectTimeout > 0 ? mConnectTimeout : DEFAULT_CONNECT_TIMEOUT));
 			connection.mWantedCapabilities = (mWantedCapabilities != null ? mWantedCapabilities : SUPPORTED_CAPABILITIES);
 			connection.mEncoding = (mEncoding != null ? mEncoding : Charset.defaultCharset());
 			connection.mExtras = mExtras;
 			connection.mFactory = (mFactory != null ? mFactory : new MemoryStoreFactory<Message>());
 			connection.mFloodController = (mFloodController != null ? mFloodController : new StandardFloodController());
 			connection.mHost = mHost;
+			connection.mLineEncoder = new LineEncoder(connection.mEncoding);
 			connection.mLoginMode = (!TextUtils.isEmpty(mLoginMode) ? mLoginMode : "8");
+			connection.mMaxLineLength = mMaxLineLength;
+			connection.mOverflowPolicy = mOverflowPolicy;
 			connection.mWantedNick = mNick;
 			connection.mPass = mPass;
 			connection.mPort = (mPort != 0 ? mPort : (mSecure ? 6697 : 6667));
+			connection.mReactor = mReactor;
+			connection.mReadBufferSize = mReadBufferSize;
 			connection.mReal = mReal;
+			connection.mReconnectLimit = mReconnectLimit;
+			connection.mReconnectOpenTime = mReconnectOpenTime;
+			connection.mReplay = mReplay;
 			connection.mSecure = mSecure;
 			connection.mSoTimeout = (mSoTimeout > 0 ? mSoTimeout : DEFAULT_SOCKET_TIMEOUT);
+			connection.mSslContext = mSslContext;
+			connection.mStringCache = mStringCache;
+			connection.mThreadMode = mThreadMode;
 			connection.mUser = mUser;
+			connection.mWriterTopology = mWriterTopology;
 			
 			connection.mIgnoreFilter.add(mIgnores);
-			connection.mFilters.add(connection.mIgnoreFilter);
-			connection.mFilters.addAll(mFilters);
+			connection.mRawFilters.add(connection.mIgnoreFilter);
+
+			for (Filter filter : mFilters) {
+				if (filter instanceof RawFilter)
+					connection.mRawFilters.add((RawFilter) filter);
+				else
+					connection.mFilters.add(filter);
+			}
 
 			return connection;
 		}
@@ -205,6 +279,18 @@ public class Connection extends EventEmitter {
 			return this;
 		}
 
+		// Record every line received and sent
+		public Builder capture(Capture capture) {
+			mCapture = capture;
+			return this;
+		}
+
+		// Time allowed to each address of the host to accept the connection
+		public Builder connectTimeout(int timeout) {
+			mConnectTimeout = timeout;
+			return this;
+		}
+
 		public Builder encoding(Charset charset) {
 			mEncoding = charset;
 			return this;
@@ -245,6 +331,16 @@ public class Connection extends EventEmitter {
 			return this;
 		}
 
+		// Lines longer than this many bytes, tags included, are truncated or make the connection drop
+		public Builder maxLineLength(int length, OverflowPolicy policy) {
+			if (length < 1)
+				throw new IllegalArgumentException("The maximum line length must be positive.");
+
+			mMaxLineLength = length;
+			mOverflowPolicy = policy;
+			return this;
+		}
+
 		public Builder mode(String mode) {
 			mLoginMode = mode;
 			return this;
@@ -265,11 +361,46 @@ public class Connection extends EventEmitter {
 			return this;
 		}
 
+		// Share the threads of a reactor instead of using blocking sockets
+		public Builder reactor(Reactor reactor) {
+			mReactor = reactor;
+			return this;
+		}
+
+		// Initial size of the read buffer; it grows up to the maximum line length when a line doesn't fit
+		public Builder readBufferSize(int size) {
+			if (size < 1)
+				throw new IllegalArgumentException("The read buffer size must be positive.");
+
+			mReadBufferSize = size;
+			return this;
+		}
+
 		public Builder real(String real) {
 			mReal = real;
 			return this;
 		}
 
+		// Play a capture instead of connecting to the server
+		public Builder replay(Replay replay) {
+			mReplay = replay;
+			return this;
+		}
+
+		// After this many failed attempts in a row the circuit opens: a single attempt is made every openTime
+		// milliseconds until the connection registers, or none at all if openTime is negative
+		public Builder reconnectLimit(int attempts, long openTime) {
+			mReconnectLimit = attempts;
+			mReconnectOpenTime = openTime;
+			return this;
+		}
+
+		// Resolves host names; by default answers are cached for a minute and shared by every connection
+		public Builder resolver(Resolver resolver) {
+			mResolver = resolver;
+			return this;
+		}
+
 		public Builder secure(boolean secure) {
 			mSecure = secure;
 			return this;
@@ -280,33 +411,108 @@ public class Connection extends EventEmitter {
 			return this;
 		}
 
+		// Context for secure connections; by default all of them share one, along with its session cache
+		public Builder sslContext(SSLContext context) {
+			mSslContext = context;
+			return this;
+		}
+
 		public Builder storeFactory(StoreFactory<Message> factory) {
 			mFactory = factory;
 			return this;
 		}
 
+		// Nicks, users, hosts and channels are deduplicated through this cache, null disables it
+		public Builder stringCache(StringCache cache) {
+			mStringCache = cache;
+			return this;
+		}
+
+		// Threads used by blocking connections, see ThreadMode
+		public Builder threadMode(ThreadMode mode) {
+			mThreadMode = mode;
+			return this;
+		}
+
 		public Builder user(String user) {
 			mUser = user;
 			return this;
 		}
+
+		// Threads writing to blocking sockets; connections built with a reactor write from its loops
+		public Builder writers(WriterTopology topology) {
+			mWriterTopology = topology;
+			return this;
+		}
 	}
 
-	private class InputThreadObserver implements InputThread.Observer {
+	// Callbacks from a transport that has been replaced or closed are ignored
+	private class TransportListener implements Transport.Listener {
+		private RawLine mRawLine = new RawLine();
+		private Transport mSource;
+
+		TransportListener(Transport source) {
+			mSource = source;
+		}
+
+		@Override
+		public void onBatch(LineBatch batch) {
+			if (mTransport != mSource)
+				return;
+
+			byte[] buffer = batch.buffer();
+
+			for (int i = 0; i < batch.size(); i++) {
+				if (mCapture != null)
+					mCapture.record(buffer, batch.start(i), batch.end(i) - batch.start(i));
+
+				onLine(buffer, batch.start(i), batch.end(i) - batch.start(i));
+			}
+		}
+
+		@Override
+		public void onConnect(OutputInterface output) {
+			if (mTransport != mSource)
+				return;
+
+			mOutputInterface = output;
+			mState = State.CONNECTED;
+			emit(new Event(CONNECT, Connection.this));
+			cap("LS");
+
+			if (!TextUtils.isEmpty(mPass))
+				pass(mPass);
+
+			nick(mWantedNick);
+			user(mUser, mLoginMode, "*", mReal);
+		}
+
 		@Override
 		public void onDisconnect() {
+			if (mTransport != mSource)
+				return;
+
 			onDisconnection();
 		}
 
-		@Override
-		public void onLine(String line) {
-			Message message = Message.from(line);
+		private void onLine(byte[] buffer, int offset, int length) {
+			RawLine raw = mRawLine.reset(buffer, offset, length, mEncoding, mStringCache);
+			Message message = Message.from(raw);
+
+			// The flood controller must see the replies it reacts to even when a filter drops them
+			mFloodController.onReceive(message);
+
+			for (RawFilter filter : mRawFilters) {
+				if (filter.doFilter(raw))
+					return;
+			}
 
 			for (Filter filter : mFilters) {
 				if (filter.doFilter(message))
 					return;
 			}
 
-			emit(new Event(message.command, message));
+			emit(new Event(message.getCommand(), message.getCommandCode(), message));
 		}
 	}
 
@@ -338,6 +544,11 @@ public class Connection extends EventEmitter {
 			sendLine(AWAY, text);
 	}
 
+	@Override
+	protected int codeOf(String event) {
+		return Commands.code(event);
+	}
+
 	public void cap(String subcommand) {
 		sendLine(CAP, subcommand);
 	}
@@ -432,6 +643,10 @@ public class Connection extends EventEmitter {
 		return mState;
 	}
 
+	public ThreadMode getThreadMode() {
+		return mThreadMode;
+	}
+
 	public String getUser() {
 		return mUser;
 	}
@@ -454,25 +669,21 @@ public class Connection extends EventEmitter {
 	private void initCallbacks() {
 		// Cambi di stato
 		on(REGISTER, event -> {
-			if (mAutoJoin.size() > 0) {
-				for (String channel : mAutoJoin)
-					join(channel);
-
-				mAutoJoin.clear();
-			} else {
-				for (Conversation conversation : mConversations.values()) {
-					if (conversation.getType() == Conversation.Type.CHANNEL)
-						join(conversation.getName());
-				}
-			}
+			mReconnectAttempt = 0;
+			mJoinPending = true;
+			scheduleProbe(mTransport);
 		});
+		// Channels are joined at the end of the MOTD, which comes after ISUPPORT: by then the JOIN target limit is known
+		on(RPL_ENDOFMOTD, event -> joinPending());
+		on(ERR_NOMOTD, event -> joinPending());
 		on(CLOSE, event -> {
-			OutputInterfaceFactory f = OutputInterfaceFactory.instance();
-			//@formatter:off
-			try { mSocket.close(); } catch (Exception ignored) { } finally { mSocket = null; }
-			try { mInputThread.quit(); } catch (Exception ignored) { } finally { mInputThread = null; }
-			try { f.release(mOutputInterface); } catch (Exception ignored) { } finally {mOutputInterface = null; }
-			//@formatter:on
+			mJoinPending = false;
+			Transport transport = mTransport;
+			mTransport = null;
+			mOutputInterface = null;
+
+			if (transport != null)
+				transport.close();
 
 			mCapabilities.clear();
 			mCurrentHost = null;
@@ -488,7 +699,7 @@ public class Connection extends EventEmitter {
 		on(AWAY, (Event event) -> {
 			Message message = (Message) event.data;
 
-			if (message.params.size() > 0) {
+			if (message.getParamCount() > 0) {
 				// TODO: User is away
 			} else {
 				// TODO: User is returned
@@ -496,10 +707,10 @@ public class Connection extends EventEmitter {
 		});
 		on(CAP, event -> {
 			Message message = (Message) event.data;
-			String sub = message.params.get(1);
+			String sub = message.getParam(1);
 
 			if (sub.equals("ACK")) {
-				ArrayList<String> caps = new ArrayList<>(Arrays.asList(message.params.get(2).split("\\s+")));
+				ArrayList<String> caps = new ArrayList<>(Arrays.asList(message.getParam(2).split("\\s+")));
 
 				for (String cap : caps) {
 					if (cap.startsWith("-"))
@@ -511,10 +722,10 @@ public class Connection extends EventEmitter {
 		});
 		on(CAP, event -> {
 			Message message = (Message) event.data;
-			String sub = message.params.get(1);
+			String sub = message.getParam(1);
 
 			if (mState == State.CONNECTED) {
-				ArrayList<String> caps = new ArrayList<>(Arrays.asList(message.params.get(2).split("\\s+")));
+				ArrayList<String> caps = new ArrayList<>(Arrays.asList(message.getParam(2).split("\\s+")));
 
 				switch (sub) {
 					case "ACK":
@@ -555,22 +766,22 @@ public class Connection extends EventEmitter {
 		});
 		on(JOIN, event -> {
 			Message message = (Message) event.data;
-			User user = mUsers.get(message.nick);
+			User user = mUsers.get(message.getNick());
 
 			if (mUser == null)
-				user = new User(message.nick, message.user, message.host);
+				user = new User(message.getNick(), message.getUser(), message.getHost());
 
 			if (mCapabilities.contains("extended-join")) {
-				user.setAccount(message.params.get(1));
-				user.setReal(message.params.get(2));
+				user.setAccount(message.getParam(1));
+				user.setReal(message.getParam(2));
 			}
 
-			String channel = message.params.get(0);
+			String channel = message.getParam(0);
 		});
 		on(MODE, event -> {
 			Message message = (Message) event.data;
-			String target = message.params.get(0);
-			String specs = message.params.get(1);
+			String target = message.getParam(0);
+			String specs = message.getParam(1);
 
 			// Ci interessa solo la nostra user mode
 			if (target.equals(mNick)) {
@@ -591,17 +802,17 @@ public class Connection extends EventEmitter {
 		on(NICK, event -> {
 			Message message = (Message) event.data;
 
-			if (TextUtils.compareIgnoreCase(mNick, message.nick, mCaseMapping) == 0)
-				mNick = message.params.get(0);
+			if (TextUtils.compareIgnoreCase(mNick, message.getNick(), mCaseMapping) == 0)
+				mNick = message.getParam(0);
 		});
 		on(PING, event -> {
 			Message message = (Message) event.data;
-			pong(message.params.get(0));
+			pong(message.getParam(0));
 		});
 		on(RPL_ISUPPORT, event -> {
 			Message message = (Message) event.data;
 			Pattern pattern = Pattern.compile("Try server (.+), port (\\d+)");
-			Matcher matcher = pattern.matcher(message.params.get(1));
+			Matcher matcher = pattern.matcher(message.getParam(1));
 			boolean isRplBounce = matcher.find();
 
 			if (isRplBounce) {
@@ -621,8 +832,8 @@ public class Connection extends EventEmitter {
 				mIsupportCompilant = true;
 				pattern = Pattern.compile("([A-Z]+)(=(\\S+))?");
 
-				for (int i = 1; i < message.params.size(); i++) {
-					matcher = pattern.matcher(message.params.get(i));
+				for (int i = 1; i < message.getParamCount(); i++) {
+					matcher = pattern.matcher(message.getParam(i));
 
 					while (matcher.find()) {
 						String key = matcher.group(1);
@@ -636,9 +847,27 @@ public class Connection extends EventEmitter {
 									else if (value.equals("strict-rfc1459"))
 										mCaseMapping = CaseMapping.STRICT_RFC1459;
 
+									break;
+								case "MAXTARGETS":
+									// Superseded by TARGMAX, which may come before or after it
+									mTargetLimits.putIfAbsent(PRIVMSG, Integer.parseInt(value));
+									mTargetLimits.putIfAbsent(NOTICE, Integer.parseInt(value));
 									break;
 								case "NETWORK":
 									mNetwork = value;
+									break;
+								case "TARGMAX":
+									for (String limit : value.split(",")) {
+										int colon = limit.indexOf(':');
+
+										if (colon > 0) {
+											String command = limit.substring(0, colon);
+											String count = limit.substring(colon + 1);
+											mTargetLimits.put(command, (count.isEmpty() ? Integer.MAX_VALUE
+													: Integer.parseInt(count)));
+										}
+									}
+
 									break;
 							}
 						} catch (Exception ignored) {
@@ -649,10 +878,10 @@ public class Connection extends EventEmitter {
 		});
 		on(RPL_MYINFO, event -> {
 			Message message = (Message) event.data;
-			mCurrentHost = message.params.get(1);
-			mHostIrcdVersion = message.params.get(2);
-			String userModes = message.params.get(3);
-			String channelModes = message.params.get(4);
+			mCurrentHost = message.getParam(1);
+			mHostIrcdVersion = message.getParam(2);
+			String userModes = message.getParam(3);
+			String channelModes = message.getParam(4);
 
 			for (int i = 0; i < userModes.length(); i++)
 				mUserMode.put(userModes.charAt(i), false);
@@ -669,13 +898,13 @@ public class Connection extends EventEmitter {
 		});
 		on(RPL_WELCOME, (Event event) -> {
 			Message message = (Message) event.data;
-			mNick = message.params.get(0);
+			mNick = message.getParam(0);
 		});
 
 		// Stato delle conversazioni
 		on(JOIN, event -> {
 			Message message = (Message) event.data;
-			String target = message.params.get(0);
+			String target = message.getParam(0);
 			Conversation conversation = mConversations.get(target);
 
 			if (conversation == null) {
@@ -684,17 +913,17 @@ public class Connection extends EventEmitter {
 				emit(new Event(NEW_CONVERSATION, conversation));
 			}
 
-			conversation.addUser(message.nick);
+			conversation.addUser(message.getNick());
 		});
 		on(new String[]{ KICK, PART }, event -> {
 			Message message = (Message) event.data;
-			String conversationName = message.params.get(0);
+			String conversationName = message.getParam(0);
 			String target;
 
-			if (message.command.equals(PART))
-				target = message.nick;
+			if (message.getCommand().equals(PART))
+				target = message.getNick();
 			else
-				target = message.params.get(1);
+				target = message.getParam(1);
 
 			if (TextUtils.compareIgnoreCase(target, mNick, mCaseMapping) == 0) {
 				Conversation conversation = mConversations.remove(conversationName);
@@ -714,12 +943,12 @@ public class Connection extends EventEmitter {
 		});
 		on(new String[]{ JOIN, NOTICE, PRIVMSG }, event -> {
 			Message message = (Message) event.data;
-			String target = message.params.get(0);
+			String target = message.getParam(0);
 
-			if (message.command.equals(PRIVMSG) || message.command.equals(NOTICE)) {
+			if (message.getCommand().equals(PRIVMSG) || message.getCommand().equals(NOTICE)) {
 				if (mState == State.REGISTERED) {
 					if (TextUtils.compareIgnoreCase(target, mNick, mCaseMapping) == 0)
-						target = message.nick;
+						target = message.getNick();
 				}
 			}
 
@@ -737,9 +966,9 @@ public class Connection extends EventEmitter {
 			Message message = (Message) event.data;
 
 			for (Conversation conversation : mConversations.values()) {
-				if (conversation.contains(message.nick)) {
-					conversation.removeUser(message.nick);
-					conversation.addUser(message.params.get(0));
+				if (conversation.contains(message.getNick())) {
+					conversation.removeUser(message.getNick());
+					conversation.addUser(message.getParam(0));
 					conversation.putMessage(message);
 				}
 			}
@@ -751,16 +980,16 @@ public class Connection extends EventEmitter {
 			public void performAction(Event event) {
 				Message message = (Message) event.data;
 
-				switch (message.command) {
+				switch (message.getCommand()) {
 					case RPL_NAMREPLY:
 						if (sb == null)
 							sb = new StringBundler();
 
 						sb.append(" ");
-						sb.append(message.params.get(3));
+						sb.append(message.getParam(3));
 						break;
 					case RPL_ENDOFNAMES:
-						String target = message.params.get(1);
+						String target = message.getParam(1);
 						Conversation conversation = mConversations.get(target);
 
 						if (conversation == null) {
@@ -778,18 +1007,18 @@ public class Connection extends EventEmitter {
 		on(RPL_WHOREPLY, event -> {
 			Message message = (Message) event.data;
 
-			String user = message.params.get(2);
-			String host = message.params.get(3);
-			String server = message.params.get(4);
-			String nick = message.params.get(5);
-			boolean away = message.params.get(6).equals("G");
+			String user = message.getParam(2);
+			String host = message.getParam(3);
+			String server = message.getParam(4);
+			String nick = message.getParam(5);
+			boolean away = message.getParam(6).equals("G");
 		});
 		on(QUIT, event -> {
 			Message message = (Message) event.data;
 
 			for (Conversation conversation : mConversations.values()) {
-				if (conversation.contains(message.nick)) {
-					conversation.removeUser(message.nick);
+				if (conversation.contains(message.getNick())) {
+					conversation.removeUser(message.getNick());
 					conversation.putMessage(message);
 				}
 			}
@@ -816,6 +1045,11 @@ public class Connection extends EventEmitter {
 		sendLine(ISON, nicks);
 	}
 
+	// Join many channels with as few lines as the server allows
+	public void join(Collection<String> channels) {
+		sendLineToEach(false, JOIN, channels, null);
+	}
+
 	public void join(String channels) {
 		join(channels, null);
 	}
@@ -827,6 +1061,28 @@ public class Connection extends EventEmitter {
 			sendLine(JOIN, channels, keys);
 	}
 
+	// Join the auto-join list, or the channels that were open before a reconnection
+	private void joinPending() {
+		if (!mJoinPending)
+			return;
+
+		mJoinPending = false;
+
+		if (mAutoJoin.size() > 0) {
+			join(mAutoJoin);
+			mAutoJoin.clear();
+		} else {
+			List<String> channels = new ArrayList<>();
+
+			for (Conversation conversation : mConversations.values()) {
+				if (conversation.getType() == Conversation.Type.CHANNEL)
+					channels.add(conversation.getName());
+			}
+
+			join(channels);
+		}
+	}
+
 	public void kick(String channel, String user) {
 		kick(channel, user, null);
 	}
@@ -904,6 +1160,10 @@ public class Connection extends EventEmitter {
 		sendLine(NICK, nick);
 	}
 
+	public void notice(Collection<String> targets, String text) {
+		sendLineToEach(true, NOTICE, targets, text);
+	}
+
 	public void notice(String target, String text) {
 		sendLine(true, NOTICE, target, text);
 	}
@@ -912,17 +1172,8 @@ public class Connection extends EventEmitter {
 		mState = State.CLOSED;
 		emit(new Event(CLOSE, this));
 
-		if (mAutoReconnectTimeout >= 0) {
-			(new Thread() {
-				@Override
-				public void run() {
-					try {
-						sleep(mAutoReconnectTimeout);
-						start();
-					} catch (InterruptedException ignored) { }
-				}
-			}).start();
-		}
+		if (mBackoff != null)
+			scheduleReconnect();
 	}
 
 	public void oper(String name, String password) {
@@ -948,6 +1199,10 @@ public class Connection extends EventEmitter {
 		sendLine(PONG, target);
 	}
 
+	public void privmsg(Collection<String> targets, String text) {
+		sendLineToEach(true, PRIVMSG, targets, text);
+	}
+
 	public void privmsg(String target, String text) {
 		sendLine(true, PRIVMSG, target, text);
 	}
@@ -964,54 +1219,190 @@ public class Connection extends EventEmitter {
 		sendLine(QUIT, message);
 	}
 
+	private void scheduleReconnect() {
+		int attempt = ++mReconnectAttempt;
+		boolean open = (mReconnectLimit > 0 && attempt > mReconnectLimit);
+		long delay;
+
+		if (open) {
+			if (attempt == mReconnectLimit + 1 && mReconnectOpenTime >= 0)
+				emit(new Event(CIRCUIT_OPEN, this));
+
+			delay = mReconnectOpenTime;
+		} else {
+			delay = mBackoff.delay(attempt);
+		}
+
+		if (delay < 0) {
+			emit(new Event(RECONNECT_STOP, this));
+			return;
+		}
+
+		// A token per attempt, so that stop() can take it back
+		Object token = new Object();
+		mReconnectToken = token;
+		emit(new Event(RECONNECT, new ReconnectAttempt(attempt, delay, open)));
+
+		Runnable task = () -> {
+			if (mReconnectToken == token) {
+				mReconnectToken = null;
+				start();
+			}
+		};
+
+		schedule(task, delay);
+	}
+
+	private void schedule(Runnable task, long delay) {
+		if (mReactor != null)
+			mReactor.schedule(task, delay);
+		else
+			ReconnectScheduler.schedule(task, delay);
+	}
+
+	// Ping the server now and then while registered, for flood controllers that watch the round trip time
+	private void scheduleProbe(Transport transport) {
+		long interval = mFloodController.getProbeInterval();
+
+		if (interval <= 0 || transport == null)
+			return;
+
+		schedule(() -> {
+			if (mTransport != transport || mState != State.REGISTERED)
+				return;
+
+			sendLine(PING, Long.toHexString(System.nanoTime()));
+			scheduleProbe(transport);
+		}, interval);
+	}
+
+	private static OutputInterface.Priority priorityOf(String line) {
+		for (String command : URGENT_COMMANDS) {
+			int length = command.length();
+
+			if (line.startsWith(command) && (line.length() == length || line.charAt(length) == ' '
+					|| line.charAt(length) == '\r'))
+				return OutputInterface.Priority.HIGH;
+		}
+
+		return OutputInterface.Priority.NORMAL;
+	}
+
 	private void sendLine(String... strings) {
 		sendLine(false, strings);
 	}
 
 	private void sendLine(boolean emitEvent, String... strings) {
-		String line;
+		StringBuilder sb = new StringBuilder(64);
 
-		if (strings.length == 1) {
-			line = strings[0];
-		} else {
-			StringBundler sb = new StringBundler(strings.length * 2 + 1);
+		try {
+			Message.writeCommand(sb, strings);
+		} catch (IOException e) {
+			throw new AssertionError(e); // StringBuilder doesn't throw
+		}
+
+		int length = sb.length();
+		sb.append("\r\n");
+		sendRawString(sb.toString());
+
+		if (emitEvent) {
+			Message message = Message.from(":" + mNick + "!" + mUser + "@localhost " + sb.substring(0, length));
+			emit(new Event(message.getCommand(), message));
+		}
+	}
+
+	// Send a command to many targets, packing as many targets in a line as the server takes; the text, usually the
+	// longest part, is encoded only once
+	private void sendLineToEach(boolean emitEvent, String command, Collection<String> targets, String text) {
+		String params = "";
+
+		if (text != null) {
+			StringBuilder sb = new StringBuilder(text.length() + 4);
 
-			for (int i = 0; i < strings.length - 1; i++) {
-				sb.append(strings[i]);
-				sb.append(" ");
+			try {
+				Message.writeCommand(sb, "", text);
+			} catch (IOException e) {
+				throw new AssertionError(e); // StringBuilder doesn't throw
 			}
 
-			String trailing = strings[strings.length - 1];
+			params = sb.toString();
+		}
 
-			if (TextUtils.isEmpty(trailing) || trailing.contains(":") || trailing.contains(" "))
-				sb.append(":");
+		ByteBuffer tail = mLineEncoder.encode(params + "\r\n");
+		int limit = targetLimit(command);
+		int room = MAX_LINE_LENGTH - command.length() - 1 - tail.remaining();
+		List<String> packed = new ArrayList<>();
+		int length = 0;
 
-			sb.append(trailing);
+		for (String target : targets) {
+			int targetLength = target.getBytes(mEncoding).length;
 
-			if (!trailing.endsWith("\r\n"))
-				sb.append("\r\n");
+			if (!packed.isEmpty() && (packed.size() == limit || length + 1 + targetLength > room)) {
+				sendPacked(emitEvent, command, packed, params, tail);
+				packed.clear();
+				length = 0;
+			}
 
-			line = sb.toString();
+			length += (packed.isEmpty() ? 0 : 1) + targetLength;
+			packed.add(target);
 		}
 
-		sendRawString(line);
+		if (!packed.isEmpty())
+			sendPacked(emitEvent, command, packed, params, tail);
+	}
+
+	private void sendPacked(boolean emitEvent, String command, List<String> targets, String params, ByteBuffer tail) {
+		String head = command + " " + String.join(",", targets);
+		sendRawLine(head + params + "\r\n", mLineEncoder.encode(head, tail));
 
+		// Every target gets an event of its own, as if it had a line of its own
 		if (emitEvent) {
-			line = line.substring(0, line.length() - 2);
-			Message message = Message.from(":" + mNick + "!" + mUser + "@localhost " + line);
-			emit(new Event(message.command, message));
+			for (String target : targets) {
+				Message message = Message.from(":" + mNick + "!" + mUser + "@localhost " + command + " " + target + params);
+				emit(new Event(message.getCommand(), message));
+			}
 		}
 	}
 
-	private void sendRawString(String string) {
+	// The string is only shown to the flood controller, what goes out are the bytes
+	private void sendRawLine(String string, ByteBuffer line) {
+		// The probe sends from the scheduler thread, which can race with the connection closing
+		OutputInterface output = mOutputInterface;
+
+		if (output == null)
+			return;
+
+		OutputInterface.Priority priority = priorityOf(string);
 		long delay;
 
 		if (mState == State.CONNECTED)
 			delay = 0;
 		else
-			delay = mFloodController.getDelay(string);
+			delay = mFloodController.getDelay(string, line.remaining());
 
-		mOutputInterface.write(string, delay);
+		// Urgent lines are still charged to the flood controller, so the lines after them make up for it
+		if (priority == OutputInterface.Priority.HIGH)
+			delay = 0;
+
+		if (mCapture != null)
+			mCapture.record(line, delay);
+
+		output.write(line, delay, priority);
+	}
+
+	private void sendRawString(String string) {
+		sendRawLine(string, mLineEncoder.encode(string));
+	}
+
+	// How many targets the server takes in one line of the command. JOIN has always taken a list, messages only do if the
+	// server says so.
+	private int targetLimit(String command) {
+		Integer limit = mTargetLimits.get(command);
+
+		if (limit != null)
+			return Math.max(1, limit);
+
+		return (command.equals(JOIN) ? Integer.MAX_VALUE : 1);
 	}
 
 	public void servlist() {
@@ -1046,44 +1437,32 @@ public class Connection extends EventEmitter {
 			return;
 
 		mState = State.STARTED;
+		mTargetLimits.clear();
 		emit(new Event(START, this));
 
-		new Thread(() -> {
-			try {
-				if (mSecure) {
-					SSLContext sslContext = SSLContext.getInstance("TLS");
-					String algorithm = TrustManagerFactory.getDefaultAlgorithm();
-					TrustManagerFactory tmFactory = TrustManagerFactory.getInstance(algorithm);
-					tmFactory.init((KeyStore) null);
-					sslContext.init(null, tmFactory.getTrustManagers(), null);
-					SSLSocketFactory sslFactory = sslContext.getSocketFactory();
-					SSLSocket sslSocket = (SSLSocket) sslFactory.createSocket(mHost, mPort);
-					sslSocket.startHandshake();
-					mSocket = sslSocket;
-				} else {
-					mSocket = new Socket(mHost, mPort);
-				}
-
-				mSocket.setSoTimeout(mSoTimeout);
-				mInputThread = new InputThread(mSocket.getInputStream(), mEncoding, new InputThreadObserver());
-				mInputThread.start();
-				OutputInterfaceFactory outFactory = OutputInterfaceFactory.instance();
-				OutputStreamWriter outWriter = new OutputStreamWriter(mSocket.getOutputStream(), mEncoding);
-				mOutputInterface = outFactory.createInterface(outWriter);
-
-				mState = State.CONNECTED;
-				emit(new Event(CONNECT, this));
-				cap("LS");
+		Transport transport;
+		LineReader reader = new LineReader(mReadBufferSize, mMaxLineLength, mOverflowPolicy);
+		SSLContext sslContext = null;
 
-				if (!TextUtils.isEmpty(mPass))
-					pass(mPass);
-
-				nick(mWantedNick);
-				user(mUser, mLoginMode, "*", mReal);
-			} catch (Exception e) {
+		if (mSecure && mReplay == null) {
+			try {
+				sslContext = (mSslContext != null ? mSslContext : SslContexts.defaultContext());
+			} catch (GeneralSecurityException e) {
 				onDisconnection();
+				return;
 			}
-		}).start();
+		}
+
+		if (mReplay != null)
+			transport = mReplay.newTransport(reader, mThreadMode);
+		else if (mReactor != null)
+			transport = new ReactorTransport(mReactor, mConnector, mHost, mPort, mSoTimeout, sslContext, reader);
+		else
+			transport = new SocketTransport(mConnector, mHost, mPort, mSoTimeout, sslContext, reader,
+					mWriterTopology, mThreadMode);
+
+		mTransport = transport;
+		transport.open(new TransportListener(transport));
 	}
 
 	public void stats() {
@@ -1106,6 +1485,9 @@ public class Connection extends EventEmitter {
 	}
 
 	public void stop() {
+		// Cancel a pending reconnect, if any
+		mReconnectToken = null;
+
 		if (mState == State.CLOSED)
 			return;
 
@@ -0,0 +1,299 @@
+/*
+ * This file is part of Rice.
+ * © Copyright Massimo Neri 2014 <hello@mneri.me>
+ *
+ * Rice is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rice is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rice. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package me.mneri.rice;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import me.mneri.rice.net.Resolver;
+
+// Connects to a host by racing its addresses, Happy Eyeballs style (RFC 8305): IPv6 and IPv4 addresses take turns,
+// a new attempt starts every ATTEMPT_DELAY milliseconds or as soon as the previous one fails, and the first channel
+// to connect wins. Attempts for the reactor run on an event loop, so racing doesn't cost any thread.
+class Connector {
+	static final long ATTEMPT_DELAY = 250;
+
+	private final int mConnectTimeout;
+	private final Resolver mResolver;
+
+	interface Callback {
+		// Called on the loop with the key of the connected channel, which is registered with the loop's selector
+		public void onConnect(SelectionKey key);
+
+		public void onFailure(IOException e);
+	}
+
+	private static class Attempt implements EventLoop.Handler {
+		final SocketChannel channel;
+		SelectionKey key;
+		final Race race;
+		EventLoop.Timer timeout;
+
+		Attempt(Race race, SocketChannel channel) {
+			this.race = race;
+			this.channel = channel;
+		}
+
+		@Override
+		public void onError(RuntimeException e) {
+			race.lose(this, new IOException(e));
+		}
+
+		@Override
+		public void onReady(SelectionKey key) {
+			try {
+				if (channel.finishConnect())
+					race.win(this);
+			} catch (IOException e) {
+				race.lose(this, e);
+			}
+		}
+	}
+
+	private class Race {
+		private ArrayList<Attempt> mAttempts = new ArrayList<>();
+		private List<InetSocketAddress> mCandidates;
+		private Callback mCallback;
+		private EventLoop.Timer mDelay;
+		private boolean mDone;
+		private IOException mFailure;
+		private EventLoop mLoop;
+		private int mNext;
+
+		Race(EventLoop loop, List<InetSocketAddress> candidates, Callback callback) {
+			mLoop = loop;
+			mCandidates = candidates;
+			mCallback = callback;
+		}
+
+		private void finish() {
+			mDone = true;
+
+			if (mDelay != null)
+				mDelay.cancel();
+
+			for (Attempt attempt : mAttempts) {
+				attempt.timeout.cancel();
+
+				try { attempt.channel.close(); } catch (IOException ignored) { }
+			}
+
+			mAttempts.clear();
+		}
+
+		void lose(Attempt attempt, IOException e) {
+			if (mDone)
+				return;
+
+			attempt.timeout.cancel();
+			mAttempts.remove(attempt);
+			mFailure = e;
+
+			try { attempt.channel.close(); } catch (IOException ignored) { }
+
+			// Don't wait for the delay to try the next address
+			if (mNext < mCandidates.size()) {
+				next();
+			} else if (mAttempts.isEmpty()) {
+				finish();
+				mCallback.onFailure(mFailure);
+			}
+		}
+
+		void next() {
+			if (mDone)
+				return;
+
+			if (mDelay != null)
+				mDelay.cancel();
+
+			InetSocketAddress address = mCandidates.get(mNext++);
+			SocketChannel channel;
+
+			try {
+				channel = SocketChannel.open();
+			} catch (IOException e) {
+				finish();
+				mCallback.onFailure(e);
+				return;
+			}
+
+			Attempt attempt = new Attempt(this, channel);
+			attempt.timeout = mLoop.schedule(() -> lose(attempt, new SocketTimeoutException("Connect timed out: "
+					+ address)), mConnectTimeout);
+			mAttempts.add(attempt);
+
+			try {
+				channel.configureBlocking(false);
+				attempt.key = channel.register(mLoop.selector(), 0, attempt);
+
+				if (channel.connect(address)) {
+					win(attempt);
+					return;
+				}
+
+				attempt.key.interestOps(SelectionKey.OP_CONNECT);
+			} catch (IOException e) {
+				lose(attempt, e);
+				return;
+			}
+
+			if (mNext < mCandidates.size())
+				mDelay = mLoop.schedule(this::next, ATTEMPT_DELAY);
+		}
+
+		void win(Attempt winner) {
+			if (mDone)
+				return;
+
+			mAttempts.remove(winner);
+			winner.timeout.cancel();
+			finish();
+			winner.key.interestOps(0);
+			mCallback.onConnect(winner.key);
+		}
+	}
+
+	Connector(Resolver resolver, int connectTimeout) {
+		mResolver = resolver;
+		mConnectTimeout = connectTimeout;
+	}
+
+	// Resolve the host on the calling thread, which may block, then race the addresses on the loop
+	void connect(String host, int port, EventLoop loop, Callback callback) {
+		List<InetSocketAddress> candidates;
+
+		try {
+			candidates = interleave(mResolver.resolve(host), port);
+		} catch (IOException e) {
+			callback.onFailure(e);
+			return;
+		}
+
+		if (candidates.isEmpty()) {
+			callback.onFailure(new ConnectException("No address for " + host));
+			return;
+		}
+
+		loop.execute(() -> new Race(loop, candidates, callback).next());
+	}
+
+	// Blocking version for blocking sockets: the same race with plain sockets, one thread per attempt. The socket of a
+	// SocketChannel won't do, as before Java 13 its stream doesn't write while a read with a timeout is pending.
+	Socket connect(String host, int port, ThreadFactory threads) throws IOException {
+		List<InetSocketAddress> candidates = interleave(mResolver.resolve(host), port);
+
+		if (candidates.isEmpty())
+			throw new ConnectException("No address for " + host);
+
+		// Every attempt reports once, with its connected socket or with its failure
+		BlockingQueue<Object> outcomes = new LinkedBlockingQueue<>();
+		ArrayList<Socket> sockets = new ArrayList<>();
+		IOException failure = null;
+		int next = 0;
+		int pending = 0;
+		Socket winner = null;
+
+		try {
+			while (winner == null) {
+				if (next < candidates.size()) {
+					InetSocketAddress address = candidates.get(next++);
+					Socket socket = new Socket();
+					sockets.add(socket);
+					pending++;
+
+					threads.newThread(() -> {
+						try {
+							socket.connect(address, mConnectTimeout);
+							outcomes.add(socket);
+						} catch (IOException e) {
+							outcomes.add(e);
+						}
+					}).start();
+				} else if (pending == 0) {
+					throw failure;
+				}
+
+				// Wait for an outcome, but not longer than the delay when there's another address to try
+				Object outcome;
+
+				if (next < candidates.size())
+					outcome = outcomes.poll(ATTEMPT_DELAY, TimeUnit.MILLISECONDS);
+				else
+					outcome = outcomes.take();
+
+				if (outcome instanceof Socket) {
+					winner = (Socket) outcome;
+				} else if (outcome != null) {
+					failure = (IOException) outcome;
+					pending--;
+				}
+			}
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		} finally {
+			// Closing the sockets that didn't win aborts their attempts
+			for (Socket socket : sockets) {
+				if (socket != winner)
+					try { socket.close(); } catch (IOException ignored) { }
+			}
+		}
+
+		return winner;
+	}
+
+	// IPv6 first, then alternate between the families
+	static List<InetSocketAddress> interleave(InetAddress[] addresses, int port) {
+		ArrayList<InetAddress> v4 = new ArrayList<>();
+		ArrayList<InetAddress> v6 = new ArrayList<>();
+
+		for (InetAddress address : addresses) {
+			if (address instanceof Inet6Address)
+				v6.add(address);
+			else
+				v4.add(address);
+		}
+
+		ArrayList<InetSocketAddress> candidates = new ArrayList<>(addresses.length);
+
+		for (int i = 0; i < Math.max(v4.size(), v6.size()); i++) {
+			if (i < v6.size())
+				candidates.add(new InetSocketAddress(v6.get(i), port));
+
+			if (i < v4.size())
+				candidates.add(new InetSocketAddress(v4.get(i), port));
+		}
+
+		return candidates;
+	}
+}
@@ -18,72 +18,273 @@
 
 package me.mneri.rice;
 
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
 
+// Elements ordered by the time they are due, on the System.nanoTime() clock, in a binary heap: inserting and cancelling
+// are O(log n). Elements due at the same time come out in the order they were enqueued. Urgent elements are due at
+// once and come out before all the others. Meant for one consumer.
 class DelayQueue<T> {
-	private final LinkedList<Node<T>> mQueue = new LinkedList<>();
+	private Node<T>[] mHeap = newArray(64);
+	private final ReentrantLock mLock = new ReentrantLock();
+	private final Condition mReady = mLock.newCondition();
+	private long mSequence;
+	private int mSize;
 
+	// Handle to an enqueued element, to take it out before it's due
 	static class Node<U> {
 		final U element;
+		private int index;
+		private final DelayQueue<U> queue;
+		private final long sequence;
+		private final boolean urgent;
 		final long when;
 
-		Node(U element, long when) {
+		private Node(DelayQueue<U> queue, U element, long when, long sequence, boolean urgent) {
 			this.element = element;
+			this.queue = queue;
+			this.sequence = sequence;
+			this.urgent = urgent;
 			this.when = when;
 		}
+
+		// Returns false if the element was already dequeued or cancelled
+		boolean cancel() {
+			return queue.remove(this);
+		}
+
+		private boolean isBefore(Node<?> other) {
+			if (urgent != other.urgent)
+				return urgent;
+
+			if (!urgent && when != other.when)
+				return when - other.when < 0;
+
+			return sequence < other.sequence;
+		}
 	}
 
 	public void clear() {
-		synchronized (mQueue) {
-			mQueue.clear();
+		mLock.lock();
+
+		try {
+			for (int i = 0; i < mSize; i++) {
+				mHeap[i].index = -1;
+				mHeap[i] = null;
+			}
+
+			mSize = 0;
+		} finally {
+			mLock.unlock();
 		}
 	}
 
 	public T dequeue() throws InterruptedException {
-		Node<T> node;
+		mLock.lockInterruptibly();
+
+		try {
+			for (;;) {
+				if (mSize == 0) {
+					mReady.await();
+					continue;
+				}
 
-		synchronized (mQueue) {
-			if (mQueue.size() == 0)
-				mQueue.wait();
+				long wait = mHeap[0].when - System.nanoTime();
 
-			long now = System.currentTimeMillis();
-			node = mQueue.get(0);
+				if (wait <= 0)
+					return removeAt(0).element;
 
-			while (node.when > now) {
-				mQueue.wait(node.when - now);
-				node = mQueue.get(0);
-				now = System.currentTimeMillis();
+				mReady.awaitNanos(wait);
 			}
+		} finally {
+			mLock.unlock();
+		}
+	}
 
-			mQueue.remove(0);
+	// Move up to max elements that are already due to out, without waiting; returns how many were moved
+	public int drainDue(Collection<? super T> out, int max) {
+		int count = 0;
+		mLock.lock();
+
+		try {
+			long now = System.nanoTime();
+
+			while (count < max && mSize > 0 && mHeap[0].when - now <= 0) {
+				out.add(removeAt(0).element);
+				count++;
+			}
+		} finally {
+			mLock.unlock();
 		}
 
-		return node.element;
+		return count;
+	}
+
+	public Node<T> enqueue(T element) {
+		return enqueue(element, System.nanoTime());
+	}
+
+	// The element is due at the given System.nanoTime()
+	public Node<T> enqueue(T element, long when) {
+		return enqueue(element, when, false);
+	}
+
+	private Node<T> enqueue(T element, long when, boolean urgent) {
+		mLock.lock();
+
+		try {
+			Node<T> node = new Node<>(this, element, when, mSequence++, urgent);
+
+			if (mSize == mHeap.length)
+				mHeap = Arrays.copyOf(mHeap, mSize * 2);
+
+			mHeap[mSize] = node;
+			node.index = mSize;
+			siftUp(mSize++);
+
+			// Only a new head changes how long the consumer has to wait
+			if (node.index == 0)
+				mReady.signal();
+
+			return node;
+		} finally {
+			mLock.unlock();
+		}
 	}
 
+	public Node<T> enqueueDelayed(T element, long delay) {
+		return enqueue(element, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delay)));
+	}
 
-	public void enqueue(T element) {
-		enqueue(element, 0);
+	public Node<T> enqueueUrgent(T element) {
+		return enqueue(element, System.nanoTime(), true);
 	}
 
-	public void enqueue(T element, long when) {
-		synchronized (mQueue) {
-			int i = 0;
+	@SuppressWarnings("unchecked")
+	private static <U> Node<U>[] newArray(int length) {
+		return (Node<U>[]) new Node<?>[length];
+	}
 
-			while (i < mQueue.size() && mQueue.get(i).when <= when)
-				i++;
+	private boolean remove(Node<T> node) {
+		mLock.lock();
 
-			mQueue.add(i, new Node<>(element, when));
+		try {
+			if (node.index < 0)
+				return false;
 
-			if (i == 0)
-				mQueue.notify();
+			removeAt(node.index);
+			return true;
+		} finally {
+			mLock.unlock();
 		}
 	}
 
-	public void enqueueDelayed(T element, long delay) {
-		if (delay < 0)
-			delay = 0;
+	private Node<T> removeAt(int index) {
+		Node<T> node = mHeap[index];
+		Node<T> last = mHeap[--mSize];
+		mHeap[mSize] = null;
+		node.index = -1;
+
+		if (index < mSize) {
+			mHeap[index] = last;
+			last.index = index;
+			siftDown(index);
+
+			if (mHeap[index] == last)
+				siftUp(index);
+		}
 
-		enqueue(element, System.currentTimeMillis() + delay);
+		return node;
+	}
+
+	// Drop every element matching the filter; returns how many were dropped
+	public int removeIf(Predicate<? super T> filter) {
+		mLock.lock();
+
+		try {
+			int size = 0;
+
+			for (int i = 0; i < mSize; i++) {
+				Node<T> node = mHeap[i];
+
+				if (filter.test(node.element))
+					node.index = -1;
+				else
+					mHeap[size++] = node;
+			}
+
+			int count = mSize - size;
+			Arrays.fill(mHeap, size, mSize, null);
+			mSize = size;
+
+			// Rebuild the heap bottom up
+			for (int i = (mSize >>> 1) - 1; i >= 0; i--)
+				siftDown(i);
+
+			for (int i = 0; i < mSize; i++)
+				mHeap[i].index = i;
+
+			if (count > 0)
+				mReady.signal();
+
+			return count;
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	private void siftDown(int index) {
+		Node<T> node = mHeap[index];
+		int half = mSize >>> 1;
+
+		while (index < half) {
+			int child = 2 * index + 1;
+			int right = child + 1;
+
+			if (right < mSize && mHeap[right].isBefore(mHeap[child]))
+				child = right;
+
+			if (!mHeap[child].isBefore(node))
+				break;
+
+			mHeap[index] = mHeap[child];
+			mHeap[index].index = index;
+			index = child;
+		}
+
+		mHeap[index] = node;
+		node.index = index;
+	}
+
+	private void siftUp(int index) {
+		Node<T> node = mHeap[index];
+
+		while (index > 0) {
+			int parent = (index - 1) >>> 1;
+
+			if (!node.isBefore(mHeap[parent]))
+				break;
+
+			mHeap[index] = mHeap[parent];
+			mHeap[index].index = index;
+			index = parent;
+		}
+
+		mHeap[index] = node;
+		node.index = index;
+	}
+
+	public int size() {
+		mLock.lock();
+
+		try {
+			return mSize;
+		} finally {
+			mLock.unlock();
+		}
 	}
 }
@@ -0,0 +1,188 @@
+/*
+ * This file is part of Rice.
+ * © Copyright Massimo Neri 2014 <hello@mneri.me>
+ *
+ * Rice is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rice is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rice. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package me.mneri.rice;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// A thread multiplexing many channels over one Selector. Tasks can be submitted from any thread; timers and channel
+// operations belong to the loop thread.
+class EventLoop extends Thread {
+	private final Selector mSelector;
+	private long mSequence;
+	private final ConcurrentLinkedQueue<Runnable> mTasks = new ConcurrentLinkedQueue<>();
+	private final PriorityQueue<Timer> mTimers = new PriorityQueue<>();
+	private volatile boolean mRunning = true;
+
+	interface Handler {
+		// Called on the loop thread when onReady() threw; the handler gives its channel up
+		public void onError(RuntimeException e);
+
+		// Called on the loop thread when the channel registered with this handler as attachment is ready
+		public void onReady(SelectionKey key);
+	}
+
+	static class Timer implements Comparable<Timer> {
+		private boolean mCancelled;
+		private final long mSequence;
+		private final Runnable mTask;
+		private final long mWhen;
+
+		private Timer(Runnable task, long when, long sequence) {
+			mTask = task;
+			mWhen = when;
+			mSequence = sequence;
+		}
+
+		void cancel() {
+			mCancelled = true;
+		}
+
+		@Override
+		public int compareTo(Timer other) {
+			// Timers due at the same time run in the order they were scheduled
+			if (mWhen != other.mWhen)
+				return (mWhen - other.mWhen < 0 ? -1 : 1);
+
+			return Long.compare(mSequence, other.mSequence);
+		}
+	}
+
+	EventLoop() throws IOException {
+		mSelector = Selector.open();
+		setDaemon(true);
+	}
+
+	void execute(Runnable task) {
+		mTasks.add(task);
+
+		if (Thread.currentThread() != this)
+			mSelector.wakeup();
+	}
+
+	boolean inLoop() {
+		return Thread.currentThread() == this;
+	}
+
+	void quit() {
+		mRunning = false;
+		mSelector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		while (mRunning) {
+			try {
+				long timeout = runTimers();
+
+				if (!mTasks.isEmpty())
+					mSelector.selectNow();
+				else if (timeout > 0)
+					mSelector.select(Math.max(1, timeout / 1000000));
+				else
+					mSelector.select();
+
+				Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					Handler handler = (Handler) key.attachment();
+
+					// A misbehaving callback takes down its own channel, not every connection on this loop
+					try {
+						if (key.isValid())
+							handler.onReady(key);
+					} catch (RuntimeException e) {
+						handler.onError(e);
+						report(e);
+					}
+				}
+
+				runTasks();
+			} catch (IOException ignored) {
+			} catch (RuntimeException e) {
+				report(e);
+			}
+		}
+
+		for (SelectionKey key : mSelector.keys()) {
+			try { key.channel().close(); } catch (IOException ignored) { }
+		}
+
+		try { mSelector.close(); } catch (IOException ignored) { }
+	}
+
+	// Hand an exception thrown by a callback to the uncaught exception handler, as if it had ended the thread
+	private void report(RuntimeException e) {
+		getUncaughtExceptionHandler().uncaughtException(this, e);
+	}
+
+	private void runTasks() {
+		Runnable task;
+
+		while ((task = mTasks.poll()) != null) {
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				report(e);
+			}
+		}
+	}
+
+	// Run the due timers and return the nanoseconds until the next one, or 0 if there are none
+	private long runTimers() {
+		long now = System.nanoTime();
+		Timer timer;
+
+		while ((timer = mTimers.peek()) != null) {
+			long wait = timer.mWhen - now;
+
+			if (wait > 0)
+				return wait;
+
+			mTimers.poll();
+
+			if (!timer.mCancelled) {
+				try {
+					timer.mTask.run();
+				} catch (RuntimeException e) {
+					report(e);
+				}
+			}
+		}
+
+		return 0;
+	}
+
+	// Must be called on the loop thread
+	Timer schedule(Runnable task, long delay) {
+		Timer timer = new Timer(task, System.nanoTime() + Math.max(0, delay) * 1000000, mSequence++);
+		mTimers.add(timer);
+		return timer;
+	}
+
+	Selector selector() {
+		return mSelector;
+	}
+}
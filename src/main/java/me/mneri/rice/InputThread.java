@@ -18,46 +18,47 @@
 
 package me.mneri.rice;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.nio.charset.Charset;
+import java.util.concurrent.ThreadFactory;
 
-class InputThread extends Thread {
+class InputThread implements Runnable {
+	private InputStream mInput;
 	private Observer mObserver;
-	private BufferedReader mReader;
+	private LineReader mReader;
 
 	interface Observer {
-		public void onDisconnect();
+		public void onBatch(LineBatch batch);
 
-		public void onLine(String line);
+		public void onDisconnect();
 	}
 
-	InputThread(InputStream input, Charset encoding, Observer observer) {
-		mReader = new BufferedReader(new InputStreamReader(input, encoding));
+	InputThread(InputStream input, LineReader reader, Observer observer) {
+		mInput = input;
 		mObserver = observer;
+		mReader = reader;
+	}
+
+	void start(ThreadFactory factory) {
+		factory.newThread(this).start();
 	}
 
 	void quit() {
-		try { mReader.close(); } catch (IOException ignored) { }
+		try { mInput.close(); } catch (IOException ignored) { }
 	}
 
 	@Override
 	public void run() {
-		boolean running = true;
-
-		while (running) {
-			String line = null;
+		try {
+			int read;
 
-			try {
-				while ((line = mReader.readLine()) != null)
-					mObserver.onLine(line);
-			} catch (IOException ignored) { }
+			while ((read = mInput.read(mReader.buffer(), mReader.position(), mReader.remaining())) >= 0) {
+				LineBatch batch = mReader.advance(read);
 
-			if (line == null)
-				running = false;
-		}
+				if (batch != null)
+					mObserver.onBatch(batch);
+			}
+		} catch (IOException ignored) { }
 
 		mObserver.onDisconnect();
 	}
@@ -0,0 +1,79 @@
+/*
+ * This file is part of Rice.
+ * © Copyright Massimo Neri 2014 <hello@mneri.me>
+ *
+ * Rice is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rice is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rice. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package me.mneri.rice;
+
+import java.util.Arrays;
+
+// The complete lines of one read, as a view of the reader's buffer. Both are reused from read to read, so the batch is
+// only valid until the next one; messages parsed from it copy the bytes of their line.
+class LineBatch {
+	private byte[] mBuffer;
+	private int mCount;
+	private int[] mLines = new int[64];
+
+	byte[] buffer() {
+		return mBuffer;
+	}
+
+	int end(int index) {
+		return mLines[index * 2 + 1];
+	}
+
+	// Split the buffer on '\n', dropping the '\r' before it and empty lines. Lines longer than maxLength are cut to it;
+	// returns whether there were any.
+	boolean reset(byte[] buffer, int offset, int length, int maxLength) {
+		boolean truncated = false;
+		mBuffer = buffer;
+		mCount = 0;
+		int start = offset;
+
+		for (int i = offset; i < offset + length; i++) {
+			if (buffer[i] != '\n')
+				continue;
+
+			int end = (i > start && buffer[i - 1] == '\r' ? i - 1 : i);
+
+			if (end - start > maxLength) {
+				end = start + maxLength;
+				truncated = true;
+			}
+
+			if (end > start) {
+				if (mCount * 2 == mLines.length)
+					mLines = Arrays.copyOf(mLines, mLines.length * 2);
+
+				mLines[mCount * 2] = start;
+				mLines[mCount * 2 + 1] = end;
+				mCount++;
+			}
+
+			start = i + 1;
+		}
+
+		return truncated;
+	}
+
+	int size() {
+		return mCount;
+	}
+
+	int start(int index) {
+		return mLines[index * 2];
+	}
+}
@@ -0,0 +1,78 @@
+/*
+ * This file is part of Rice.
+ * © Copyright Massimo Neri 2014 <hello@mneri.me>
+ *
+ * Rice is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rice is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rice. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package me.mneri.rice;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+// Encodes outgoing lines with a single reusable encoder and scratch buffer. Every connection owns one.
+class LineEncoder {
+	private ByteBuffer mBuffer = ByteBuffer.allocate(512);
+	private final CharsetEncoder mEncoder;
+
+	LineEncoder(Charset charset) {
+		mEncoder = charset.newEncoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	}
+
+	// The encoded text in a buffer of its own, which is handed over to the caller
+	synchronized ByteBuffer encode(CharSequence text) {
+		return encode(text, null);
+	}
+
+	// The encoded head followed by bytes that were already encoded, like the text of a message sent to many targets
+	synchronized ByteBuffer encode(CharSequence head, ByteBuffer tail) {
+		CharBuffer in = CharBuffer.wrap(head);
+		mEncoder.reset();
+		mBuffer.clear();
+
+		for (;;) {
+			CoderResult result = mEncoder.encode(in, mBuffer, true);
+
+			if (result.isOverflow())
+				grow();
+			else
+				break;
+		}
+
+		while (mEncoder.flush(mBuffer).isOverflow())
+			grow();
+
+		mBuffer.flip();
+		int tailLength = (tail != null ? tail.remaining() : 0);
+		ByteBuffer line = ByteBuffer.allocate(mBuffer.remaining() + tailLength);
+		line.put(mBuffer);
+
+		if (tail != null)
+			line.put(tail.duplicate());
+
+		line.flip();
+		return line;
+	}
+
+	private void grow() {
+		mBuffer.flip();
+		mBuffer = ByteBuffer.allocate(mBuffer.capacity() * 2).put(mBuffer);
+	}
+}
@@ -0,0 +1,181 @@
+/*
+ * This file is part of Rice.
+ * © Copyright Massimo Neri 2014 <hello@mneri.me>
+ *
+ * Rice is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rice is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rice. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package me.mneri.rice;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// Accumulates bytes read from the server and cuts them into batches of complete lines. The size of the buffer, and so
+// of reads, doesn't depend on the maximum line length: it only grows when a partial line that may still be legal fills
+// it. Lines longer than the maximum, complete or not, are handled according to the overflow policy.
+class LineReader {
+	static final int DEFAULT_BUFFER_SIZE = 8192;
+	// RFC 1459 lines plus the 8191 bytes IRCv3 allows for tags
+	static final int DEFAULT_MAX_LINE_LENGTH = 512 + 8191;
+
+	private LineBatch mBatch = new LineBatch();
+	private byte[] mBuffer;
+	// Complete lines handed out in the last batch, dropped before the next read
+	private int mConsumed;
+	private boolean mDiscarding;
+	private int mFill;
+	private final int mMaxLength;
+	private final OverflowPolicy mPolicy;
+	private ByteBuffer mReadBuffer;
+
+	LineReader() {
+		this(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_LINE_LENGTH, OverflowPolicy.TRUNCATE);
+	}
+
+	// The maximum length doesn't count the line terminator
+	LineReader(int bufferSize, int maxLength, OverflowPolicy policy) {
+		mMaxLength = maxLength;
+		mPolicy = policy;
+		mBuffer = new byte[bufferSize];
+	}
+
+	// Account for bytes read into buffer() at position(); returns the batch of complete lines, if there are any
+	LineBatch advance(int read) throws IOException {
+		int start = mFill;
+		int from = 0;
+		mFill += read;
+
+		// Skip what's left of a truncated line
+		if (mDiscarding) {
+			int newline = indexOf(mBuffer, (byte) '\n', start, mFill);
+
+			if (newline < 0) {
+				mFill = 0;
+				return null;
+			}
+
+			mDiscarding = false;
+			from = newline + 1;
+			start = from;
+		}
+
+		int last = lastIndexOf(mBuffer, (byte) '\n', start, mFill);
+
+		if (last < 0) {
+			shift(from);
+
+			// Even if a CR comes next, the partial line is already too long
+			if (mFill > mMaxLength + 1)
+				return overflow();
+
+			// No complete line yet: make room if the partial one fills the buffer
+			if (mFill == mBuffer.length) {
+				mBuffer = Arrays.copyOf(mBuffer, Math.min(mBuffer.length * 2, capacity()));
+				mReadBuffer = null;
+			}
+
+			return null;
+		}
+
+		// Every complete line goes in one batch, which reads them in place; the partial line is carried over once the
+		// batch has been consumed
+		int complete = last + 1;
+
+		if (mBatch.reset(mBuffer, from, complete - from, mMaxLength) && mPolicy == OverflowPolicy.DISCONNECT)
+			throw new IOException("Line longer than " + mMaxLength + " bytes");
+
+		mConsumed = complete;
+
+		return mBatch;
+	}
+
+	byte[] buffer() {
+		compact();
+		return mBuffer;
+	}
+
+	// Room for a partial line that is one byte too long, so that it can be told apart from a legal one and its CR
+	private int capacity() {
+		return mMaxLength + 2;
+	}
+
+	private void compact() {
+		if (mConsumed > 0) {
+			shift(mConsumed);
+			mConsumed = 0;
+		}
+	}
+
+	private static int indexOf(byte[] buffer, byte b, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (buffer[i] == b)
+				return i;
+		}
+
+		return -1;
+	}
+
+	private static int lastIndexOf(byte[] buffer, byte b, int from, int to) {
+		for (int i = to - 1; i >= from; i--) {
+			if (buffer[i] == b)
+				return i;
+		}
+
+		return -1;
+	}
+
+	private LineBatch overflow() throws IOException {
+		if (mPolicy == OverflowPolicy.DISCONNECT)
+			throw new IOException("Line longer than " + mMaxLength + " bytes");
+
+		byte[] line = Arrays.copyOf(mBuffer, mMaxLength + 1);
+		line[mMaxLength] = '\n';
+		mBatch.reset(line, 0, line.length, mMaxLength);
+		mDiscarding = true;
+		mFill = 0;
+
+		return mBatch;
+	}
+
+	int position() {
+		compact();
+		return mFill;
+	}
+
+	// The free part of buffer() as a ByteBuffer, for channel reads
+	ByteBuffer readBuffer() {
+		compact();
+
+		if (mReadBuffer == null)
+			mReadBuffer = ByteBuffer.wrap(mBuffer);
+
+		mReadBuffer.limit(mBuffer.length);
+		mReadBuffer.position(mFill);
+		return mReadBuffer;
+	}
+
+	int remaining() {
+		compact();
+		return mBuffer.length - mFill;
+	}
+
+	// Drop the first count bytes of the buffer
+	private void shift(int count) {
+		if (count > 0) {
+			System.arraycopy(mBuffer, count, mBuffer, 0, mFill - count);
+			mFill -= count;
+		}
+	}
+}
@@ -18,244 +18,487 @@
 
 package me.mneri.rice;
 
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
 
-import me.mneri.rice.text.StringBundler;
+import me.mneri.rice.text.DateUtils;
+import me.mneri.rice.text.StringCache;
 import me.mneri.rice.text.TextUtils;
 
+/**
+ * An IRC message. Creating one only scans the line as far as the command; prefix, tags and parameters are split the
+ * first time they are accessed, and every string is a slice of a single backing buffer built on demand.
+ *
+ * The backing buffer is not copied: callers handing a byte array to {@link #from(byte[], int, int, Charset)} must not
+ * modify it afterwards.
+ */
 public class Message {
-	public static final String TAG_VENDOR_DATE = "rice.mneri.me/time";
+	public static final String TAG_ACCOUNT = "account";
+	public static final String TAG_BATCH = "batch";
+	public static final String TAG_MSGID = "msgid";
+	public static final String TAG_TIME = "time";
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final ThreadLocal<WireEncoder> WIRE_ENCODER = ThreadLocal.withInitial(WireEncoder::new);
+
+	private final byte[] mBuffer;
+	private final StringCache mCache;
+	private final Charset mCharset;
+	private final int mCommandCode;
+	private final int mCommandEnd;
+	private final int mCommandStart;
+	private final int mLimit;
+	private final int mParamsStart;
+	private final int mPrefixEnd;
+	private final int mPrefixStart;
+	private final int mStart;
+	private final int mTagsEnd;
+	private final int mTagsStart;
+	private final long mTime;
+
+	// Slices are start/end pairs of offsets into mBuffer. They are scanned on first access and published through
+	// volatile writes so that a message can be handed to other threads before anybody looked at it.
+	private volatile int[] mParamSlices;
+	private volatile int[] mPrefixSlices;
+	private volatile TagMap mTags;
+
+	// Materialized on first access. Races are benign: every thread would build an equal, immutable value.
+	private String mCommand;
+	private String mHost;
+	private String mNick;
+	private List<String> mParams;
+	private String mUser;
+
+	private Message(RawLine line, boolean copy) {
+		// Only the boundaries found by RawLine are kept; prefix and parameters are split when somebody asks for them.
+		// A copied line keeps just its own bytes, so a stored message doesn't hold on to the rest of the read.
+		int shift = (copy ? line.mStart : 0);
+		mBuffer = (copy ? Arrays.copyOfRange(line.mBuffer, line.mStart, line.mLimit) : line.mBuffer);
+		mCache = line.mCache;
+		mCharset = line.mCharset;
+		mCommandCode = line.mCommandCode;
+		mCommandEnd = line.mCommandEnd - shift;
+		mCommandStart = line.mCommandStart - shift;
+		mLimit = line.mLimit - shift;
+		mParamsStart = line.mParamsStart - shift;
+		mPrefixEnd = rebase(line.mPrefixEnd, shift);
+		mPrefixStart = rebase(line.mPrefixStart, shift);
+		mStart = line.mStart - shift;
+		mTagsEnd = rebase(line.mTagsEnd, shift);
+		mTagsStart = rebase(line.mTagsStart, shift);
+		long time = (mTagsStart >= 0 ? parseTime(mBuffer, mTagsStart, mTagsEnd, -1) : -1);
+		mTime = (time >= 0 ? time : System.currentTimeMillis());
+	}
 
-	private static final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+	public static Message from(byte[] buffer, Charset charset) {
+		return from(buffer, 0, buffer.length, charset);
+	}
 
-	public final String command;
-	public final String host;
-	public final String nick;
-	public final List<String> params;
-	public final Map<String, String> tags;
-	public final String user;
+	public static Message from(byte[] buffer, int offset, int length, Charset charset) {
+		return new Message(new RawLine().reset(buffer, offset, length, charset, StringCache.DEFAULT), false);
+	}
 
-	public static Message from(String line) {
-		final char[] buffer = line.toCharArray();
-		int start = 0;
-		int end = 0;
-		String key = null;
-		String value = null;
-
-		Map<String, String> tags = new HashMap<>(4, 2);
-		String nick = null;
-		String user = null;
-		String host = null;
-		String command;
-		ArrayList<String> params = new ArrayList<>(5);
-
-		if (end < buffer.length && buffer[end] == '@') {
-			start = ++end;
-
-			while (end < buffer.length && buffer[end] != ' ') {
-				if (buffer[end] == '=') {
-					key = new String(buffer, start, end - start);
-					start = ++end;
-				} else if (buffer[end] == ';') {
-					if (key != null)
-						value = new String(buffer, start, end - start);
-					else
-						key = new String(buffer, start, end - start);
-
-					tags.put(key, value);
-					key = null;
-					value = null;
-					start = ++end;
-				} else {
-					end++;
-				}
-			}
+	public static Message from(ByteBuffer buffer, Charset charset) {
+		// Read the remaining bytes without moving the buffer position
+		if (buffer.hasArray())
+			return from(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining(), charset);
 
-			if (start != end) {
-				if (key != null)
-					value = new String(buffer, start, end - start);
-				else
-					key = new String(buffer, start, end - start);
+		byte[] copy = new byte[buffer.remaining()];
+		buffer.duplicate().get(copy);
+		return from(copy, 0, copy.length, charset);
+	}
 
-				tags.put(key, value);
-			}
+	// The line is copied: its buffer is the reader's, which is reused for the next read
+	static Message from(RawLine line) {
+		return new Message(line, true);
+	}
 
-			do {
-				end++;
-			} while (end < buffer.length && buffer[end] == ' ');
+	public static Message from(String line) {
+		return from(line.getBytes(UTF_8), UTF_8);
+	}
 
-			start = end;
+	public String getCommand() {
+		if (mCommand == null) {
+			// Known commands share the instances in Commands, so the common case doesn't allocate
+			if (mCommandCode != Commands.UNKNOWN)
+				mCommand = Commands.canonical(mCommandCode);
+			else
+				mCommand = slice(mCommandStart, mCommandEnd);
 		}
 
-		if (tags.get(TAG_VENDOR_DATE) == null) {
-			Date date = null;
+		return mCommand;
+	}
 
-			if (tags.get("time") != null) {
-				try {
-					date = format.parse(tags.remove("time"));
-				} catch (ParseException ignored) { }
-			}
+	public int getCommandCode() {
+		return mCommandCode;
+	}
 
-			if (date == null)
-				date = new Date();
+	public String getHost() {
+		if (mHost == null) {
+			int[] prefix = prefixSlices();
 
-			tags.put(TAG_VENDOR_DATE, Long.toString(date.getTime()));
+			if (prefix[4] >= 0)
+				mHost = cachedSlice(prefix[4], prefix[5]);
 		}
 
-		// If we encounter ':' there is the prefix
-		if (end < buffer.length && buffer[end] == ':') {
-			start = ++end; // Ignore ':'
+		return mHost;
+	}
 
-			// Nick ends with '!' or space
-			while (end < buffer.length && buffer[end] != '!' && buffer[end] != ' ')
-				end++;
+	public String getNick() {
+		if (mNick == null) {
+			int[] prefix = prefixSlices();
 
-			nick = new String(buffer, start, end - start);
+			if (prefix[0] >= 0)
+				mNick = cachedSlice(prefix[0], prefix[1]);
+		}
 
-			// If there's a '!' we have the username
-			if (buffer[end] == '!') {
-				start = ++end; // Ignore '!'
+		return mNick;
+	}
 
-				// Username ends with '@' or space
-				while (end < buffer.length && buffer[end] != '@' && buffer[end] != ' ')
-					end++;
+	public String getParam(int index) {
+		if (mParams != null)
+			return mParams.get(index);
 
-				user = new String(buffer, start, end - start);
-			}
+		int[] slices = paramSlices();
 
-			// If there's a '@' we have the host name
-			if (end < buffer.length && buffer[end] == '@') {
-				start = ++end;
+		if (index < 0 || index * 2 >= slices.length)
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + slices.length / 2);
 
-				// Host name ends with space
-				while (end < buffer.length && buffer[end] != ' ')
-					end++;
+		return param(slices, index);
+	}
 
-				host = new String(buffer, start, end - start);
-			}
+	public int getParamCount() {
+		return paramSlices().length / 2;
+	}
+
+	public List<String> getParams() {
+		if (mParams == null) {
+			int[] slices = paramSlices();
+			ArrayList<String> params = new ArrayList<>(slices.length / 2);
+
+			for (int i = 0; i < slices.length / 2; i++)
+				params.add(param(slices, i));
 
-			// Skip white spaces
-			do {
-				end++;
-			} while (end < buffer.length && buffer[end] == ' ');
-			start = end;
+			mParams = Collections.unmodifiableList(params);
 		}
 
-		while (end < buffer.length && buffer[end] != ' ')
-			end++;
+		return mParams;
+	}
 
-		command = new String(buffer, start, end - start);
+	public String getAccount() {
+		return getTags().get(TAG_ACCOUNT);
+	}
 
-		do {
-			end++;
-		} while (end < buffer.length && buffer[end] == ' ');
+	public String getBatch() {
+		return getTags().get(TAG_BATCH);
+	}
 
-		start = end;
+	public String getMsgId() {
+		return getTags().get(TAG_MSGID);
+	}
+
+	public Map<String, String> getTags() {
+		TagMap tags = mTags;
+
+		if (tags == null) {
+			tags = (mTagsStart >= 0 ? TagMap.parse(mBuffer, mTagsStart, mTagsEnd, mCharset) : TagMap.EMPTY);
+			mTags = tags;
+		}
+
+		return tags;
+	}
+
+	// The server-time of the message, or the time it was received when the server didn't send one
+	public long getTime() {
+		return mTime;
+	}
+
+	public String getUser() {
+		if (mUser == null) {
+			int[] prefix = prefixSlices();
+
+			if (prefix[2] >= 0)
+				mUser = cachedSlice(prefix[2], prefix[3]);
+		}
+
+		return mUser;
+	}
 
-		// Check if we have parameters
-		if (end < buffer.length) {
-			boolean trailing = false;
+	private String param(int[] slices, int index) {
+		int start = slices[index * 2];
+		int end = slices[index * 2 + 1];
 
-			do {
-				if (buffer[end] == ' ') { // space
-					// If start == end, then we have more than one space. We
-					// want to skip extra spaces.
-					if (start < end)
-						params.add(new String(buffer, start, end - start));
+		// The first parameter is often a channel: those repeat as much as prefixes do
+		if (index == 0 && end > start && isChannelPrefix(mBuffer[start]))
+			return cachedSlice(start, end);
 
-					start = end + 1;
-				} else if (buffer[end] == ':') { // ':'
-					trailing = true;
+		return slice(start, end);
+	}
+
+	private int[] paramSlices() {
+		int[] slices = mParamSlices;
+
+		if (slices == null) {
+			byte[] buffer = mBuffer;
+			int limit = mLimit;
+			int end = mParamsStart;
+			int count = 0;
+			slices = new int[10];
+
+			while (end < limit) {
+				if (count * 2 == slices.length)
+					slices = Arrays.copyOf(slices, slices.length * 2);
+
+				// A ':' at the beginning of a parameter introduces the trailing one, which takes the rest of the line
+				if (buffer[end] == ':') {
+					slices[count * 2] = end + 1;
+					slices[count * 2 + 1] = limit;
+					count++;
+					break;
 				}
 
-				end++;
-			} while (end < buffer.length && !trailing);
+				slices[count * 2] = end;
+				end = RawLine.skipWord(buffer, end, limit);
+				slices[count * 2 + 1] = end;
+				count++;
+				end = RawLine.skipSpaces(buffer, end, limit);
+			}
+
+			slices = Arrays.copyOf(slices, count * 2);
+			mParamSlices = slices;
+		}
+
+		return slices;
+	}
 
-			if (trailing)
-				start++;
+	// The value of the time tag found in the tags between start and end, or defaultValue
+	static long parseTime(byte[] buffer, int start, int end, long defaultValue) {
+		while (start < end) {
+			int limit = start;
 
-			params.add(new String(buffer, start, buffer.length - start));
+			while (limit < end && buffer[limit] != ';')
+				limit++;
+
+			if (limit - start > 5 && buffer[start] == 't' && buffer[start + 1] == 'i' && buffer[start + 2] == 'm'
+					&& buffer[start + 3] == 'e' && buffer[start + 4] == '=')
+				return DateUtils.parseIso8601(buffer, start + 5, limit - start - 5, defaultValue);
+
+			start = limit + 1;
 		}
 
-		params.trimToSize();
-		return new Message(tags, nick, user, host, command, params);
+		return defaultValue;
 	}
 
-	private Message(Map<String, String> tags, String nick, String user, String host, String command,
-					List<String> params) {
-		this.command = command;
-		this.host = host;
-		this.nick = nick;
-		this.params = Collections.unmodifiableList(params);
-		this.tags = Collections.unmodifiableMap(tags);
-		this.user = user;
+	private int[] prefixSlices() {
+		int[] slices = mPrefixSlices;
+
+		if (slices == null) {
+			slices = new int[6];
+			RawLine.splitPrefix(mBuffer, mPrefixStart, mPrefixEnd, slices);
+			mPrefixSlices = slices;
+		}
+
+		return slices;
+	}
+
+	private String cachedSlice(int start, int end) {
+		if (mCache == null)
+			return slice(start, end);
+
+		return mCache.get(mBuffer, start, end - start, mCharset);
+	}
+
+	private static boolean isChannelPrefix(byte b) {
+		return b == '#' || b == '&' || b == '+' || b == '!';
+	}
+
+	// Move an offset of the original buffer into the copied line; -1 means absent and stays so
+	private static int rebase(int offset, int shift) {
+		return (offset >= 0 ? offset - shift : offset);
+	}
+
+	private String slice(int start, int end) {
+		return new String(mBuffer, start, end - start, mCharset);
 	}
 
 	@Override
 	public String toString() {
-		StringBundler sb = new StringBundler(32);
+		StringBuilder sb = new StringBuilder(mLimit - mStart + 16);
+
+		try {
+			writeTo(sb);
+		} catch (IOException e) {
+			throw new AssertionError(e); // StringBuilder doesn't throw
+		}
+
+		return sb.toString();
+	}
 
-		sb.append("@");
+	// Write a command and its parameters; the last one is sent as trailing only when it has to be
+	static void writeCommand(Appendable out, String... words) throws IOException {
+		out.append(words[0]);
 
-		for (String key : tags.keySet()) {
-			sb.append(key);
-			String value = tags.get(key);
+		for (int i = 1; i < words.length; i++) {
+			out.append(' ');
 
-			if (value != null) {
-				sb.append("=");
-				sb.append(value);
+			if (i == words.length - 1 && needsTrailing(words[i]))
+				out.append(':');
+
+			out.append(words[i]);
+		}
+	}
+
+	private static boolean needsTrailing(String param) {
+		return param.isEmpty() || param.charAt(0) == ':' || param.indexOf(' ') >= 0;
+	}
+
+	// Write the message in wire format, without the line terminator
+	public void writeTo(Appendable out) throws IOException {
+		Map<String, String> tags = getTags();
+
+		if (!tags.isEmpty()) {
+			char separator = '@';
+
+			for (Map.Entry<String, String> tag : tags.entrySet()) {
+				out.append(separator);
+				out.append(tag.getKey());
+
+				if (tag.getValue() != null) {
+					out.append('=');
+					TagMap.escape(out, tag.getValue());
+				}
+
+				separator = ';';
 			}
 
-			sb.append(";");
+			out.append(' ');
 		}
 
-		sb.append(" ");
+		String nick = getNick();
+		String user = getUser();
+		String host = getHost();
 
 		if (!(TextUtils.isEmpty(nick) && TextUtils.isEmpty(user) && TextUtils.isEmpty(host))) {
-			sb.append(":");
+			out.append(':');
 
 			if (!TextUtils.isEmpty(nick))
-				sb.append(nick);
+				out.append(nick);
 
-			if (!TextUtils.isEmpty(user)) {
-				sb.append("!");
-				sb.append(user);
-			}
+			if (!TextUtils.isEmpty(user))
+				out.append('!').append(user);
 
-			if (!TextUtils.isEmpty(host)) {
-				sb.append("@");
-				sb.append(host);
-			}
+			if (!TextUtils.isEmpty(host))
+				out.append('@').append(host);
 
-			sb.append(" ");
+			out.append(' ');
 		}
 
-		sb.append(command);
-		sb.append(" ");
-		int size = params.size();
+		out.append(getCommand());
+		int count = getParamCount();
 
-		if (params.size() > 0) {
-			for (int i = 0; i < size - 1; i++) {
-				sb.append(params.get(i));
-				sb.append(" ");
+		for (int i = 0; i < count; i++) {
+			String param = getParam(i);
+			out.append(' ');
+
+			if (i == count - 1 && needsTrailing(param))
+				out.append(':');
+
+			out.append(param);
+		}
+	}
+
+	/**
+	 * Write the message in wire format, without the line terminator. When the charset is the one the message was
+	 * parsed with, the original bytes are copied as they are.
+	 *
+	 * @throws BufferOverflowException If the buffer doesn't have enough room; its position is then unspecified.
+	 */
+	public void writeTo(ByteBuffer buffer, Charset charset) {
+		if (charset.equals(mCharset)) {
+			buffer.put(mBuffer, mStart, mLimit - mStart);
+			return;
+		}
+
+		WireEncoder encoder = WIRE_ENCODER.get().begin(buffer, charset);
+
+		try {
+			writeTo(encoder);
+		} catch (IOException e) {
+			throw new AssertionError(e); // WireEncoder doesn't throw
+		}
+
+		encoder.end();
+	}
+
+	// Encodes the fields appended to it straight into a byte buffer, through a small reusable char buffer
+	private static final class WireEncoder implements Appendable {
+		private final CharBuffer mChars = CharBuffer.allocate(256);
+		private CharsetEncoder mEncoder;
+		private ByteBuffer mOut;
+
+		@Override
+		public Appendable append(char c) {
+			if (!mChars.hasRemaining())
+				drain(false);
+
+			mChars.put(c);
+			return this;
+		}
+
+		@Override
+		public Appendable append(CharSequence csq) {
+			return append(csq, 0, csq.length());
+		}
+
+		@Override
+		public Appendable append(CharSequence csq, int start, int end) {
+			for (int i = start; i < end; i++)
+				append(csq.charAt(i));
+
+			return this;
+		}
+
+		WireEncoder begin(ByteBuffer out, Charset charset) {
+			if (mEncoder == null || !mEncoder.charset().equals(charset)) {
+				mEncoder = charset.newEncoder()
+						.onMalformedInput(CodingErrorAction.REPLACE)
+						.onUnmappableCharacter(CodingErrorAction.REPLACE);
 			}
 
-			String trailing = params.get(size - 1);
+			mChars.clear();
+			mEncoder.reset();
+			mOut = out;
+			return this;
+		}
 
-			if (trailing.contains(" ") || trailing.contains(":"))
-				sb.append(":");
+		// A high surrogate at the end of the chars is left in the buffer until its pair arrives
+		private void drain(boolean endOfInput) {
+			mChars.flip();
+			CoderResult result = mEncoder.encode(mChars, mOut, endOfInput);
+			mChars.compact();
 
-			sb.append(trailing);
+			if (result.isOverflow())
+				throw new BufferOverflowException();
 		}
 
-		return sb.toString();
+		void end() {
+			drain(true);
+
+			if (mEncoder.flush(mOut).isOverflow())
+				throw new BufferOverflowException();
+
+			mOut = null;
+		}
 	}
 }
@@ -18,22 +18,15 @@
 
 package me.mneri.rice;
 
-import java.io.Writer;
+import java.nio.ByteBuffer;
 
-class OutputInterface {
-	private OutputThread mThread;
-	private Writer mWriter;
-
-	OutputInterface(OutputThread thread, Writer writer) {
-		mThread = thread;
-		mWriter = writer;
-	}
-
-	void write(String string) {
-		write(string, 0);
+interface OutputInterface {
+	enum Priority {
+		// Protocol traffic the server expects an answer to: sent right away, ahead of any line still waiting
+		HIGH,
+		NORMAL
 	}
 
-	void write(String string, long delay) {
-		mThread.write(mWriter, string, delay);
-	}
+	// Send an encoded line, terminator included. The buffer is owned by the interface from now on.
+	public void write(ByteBuffer line, long delay, Priority priority);
 }
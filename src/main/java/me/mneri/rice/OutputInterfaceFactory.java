@@ -18,40 +18,88 @@
 
 package me.mneri.rice;
 
-import java.io.Writer;
-import java.util.HashSet;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.concurrent.ThreadFactory;
 
 class OutputInterfaceFactory {
-	private static OutputInterfaceFactory _instance;
+	private static final OutputInterfaceFactory INSTANCE = new OutputInterfaceFactory();
 
-	private HashSet<OutputInterface> mInterfaces = new HashSet<>();
-	private OutputThread mThread;
+	// Shard count of every live interface, 0 for interfaces with a writer of their own
+	private HashMap<OutputInterface, Integer> mInterfaces = new HashMap<>();
+	private HashMap<Integer, Shards> mShards = new HashMap<>();
+
+	private static class Shards {
+		final OutputThread[] threads;
+		int users;
+
+		Shards(int count) {
+			threads = new OutputThread[count];
+
+			for (int i = 0; i < count; i++) {
+				threads[i] = new OutputThread();
+				threads[i].start(ThreadMode.PLATFORM);
+			}
+		}
+
+		OutputThread get(OutputStream output) {
+			return threads[(System.identityHashCode(output) & Integer.MAX_VALUE) % threads.length];
+		}
+
+		void quit() {
+			for (OutputThread thread : threads)
+				thread.quit();
+		}
+	}
 
 	private OutputInterfaceFactory() { }
 
-	public OutputInterface createInterface(Writer writer) {
-		if (mInterfaces.size() == 0) {
-			mThread = new OutputThread();
-			mThread.start();
+	// Per connection writers are created with the given factory, shared ones are always platform threads
+	synchronized OutputInterface createInterface(OutputStream output, WriterTopology topology, ThreadFactory threads) {
+		OutputThread thread;
+		int shards = topology.shards();
+
+		if (topology.isPerConnection()) {
+			thread = new OutputThread();
+			thread.start(threads);
+		} else {
+			Shards s = mShards.get(shards);
+
+			if (s == null) {
+				s = new Shards(shards);
+				mShards.put(shards, s);
+			}
+
+			s.users++;
+			thread = s.get(output);
 		}
 
-		OutputInterface i = new OutputInterface(mThread, writer);
-		mInterfaces.add(i);
+		OutputInterface i = new StreamOutputInterface(thread, output);
+		mInterfaces.put(i, shards);
 
 		return i;
 	}
 
 	static OutputInterfaceFactory instance() {
-		if (_instance == null)
-			_instance = new OutputInterfaceFactory();
-
-		return _instance;
+		return INSTANCE;
 	}
 
-	void release(OutputInterface i) {
-		if (mInterfaces.remove(i) && mInterfaces.size() == 0) {
-			mThread.interrupt();
-			mThread = null;
+	synchronized void release(OutputInterface i) {
+		Integer shards = mInterfaces.remove(i);
+
+		if (shards == null)
+			return;
+
+		if (shards == 0) {
+			((StreamOutputInterface) i).thread().quit();
+		} else {
+			Shards s = mShards.get(shards);
+			((StreamOutputInterface) i).cancel();
+
+			if (--s.users == 0) {
+				s.quit();
+				mShards.remove(shards);
+			}
 		}
 	}
 }
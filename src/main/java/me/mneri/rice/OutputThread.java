@@ -19,41 +19,104 @@
 package me.mneri.rice;
 
 import java.io.IOException;
-import java.io.Writer;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.ThreadFactory;
 
-class OutputThread extends Thread {
+class OutputThread implements Runnable {
+	// Upper bound on the lines written before flushing, so that a long burst doesn't delay the first of them
+	private static final int MAX_BATCH = 64;
+
+	private ArrayList<DelayedSending> mBatch = new ArrayList<>(MAX_BATCH);
+	private ArrayList<OutputStream> mFailed = new ArrayList<>();
+	private ArrayList<OutputStream> mOutputs = new ArrayList<>();
 	private DelayQueue<DelayedSending> mQueue = new DelayQueue<>();
+	private Thread mThread;
 
 	private static class DelayedSending {
-		String string;
-		Writer writer;
+		ByteBuffer line;
+		OutputStream output;
 
-		DelayedSending(Writer writer, String string) {
-			this.string = string;
-			this.writer = writer;
+		DelayedSending(OutputStream output, ByteBuffer line) {
+			this.line = line;
+			this.output = output;
 		}
 	}
 
 	OutputThread() { }
 
+	// Drop the lines still waiting to be written to output
+	void cancel(OutputStream output) {
+		mQueue.removeIf(delayed -> delayed.output == output);
+	}
+
+	// Write every line in the batch, then flush each stream once
+	private void flushBatch() {
+		for (DelayedSending delayed : mBatch) {
+			OutputStream output = delayed.output;
+
+			if (mFailed.contains(output))
+				continue;
+
+			try {
+				ByteBuffer line = delayed.line;
+
+				if (line.hasArray()) {
+					output.write(line.array(), line.arrayOffset() + line.position(), line.remaining());
+				} else {
+					byte[] bytes = new byte[line.remaining()];
+					line.duplicate().get(bytes);
+					output.write(bytes);
+				}
+
+				if (!mOutputs.contains(output))
+					mOutputs.add(output);
+			} catch (IOException e) {
+				mFailed.add(output);
+			}
+		}
+
+		for (OutputStream output : mOutputs) {
+			try {
+				if (!mFailed.contains(output))
+					output.flush();
+			} catch (IOException ignored) { }
+		}
+
+		mBatch.clear();
+		mFailed.clear();
+		mOutputs.clear();
+	}
+
+	void quit() {
+		mThread.interrupt();
+	}
+
 	@Override
 	public void run() {
 		boolean running = true;
 
 		while (running) {
 			try {
-				DelayedSending delayed = mQueue.dequeue();
-				Writer writer = delayed.writer;
-				String string = delayed.string;
-				writer.write(string);
-				writer.flush();
+				mBatch.add(mQueue.dequeue());
+				mQueue.drainDue(mBatch, MAX_BATCH - 1);
+				flushBatch();
 			} catch (InterruptedException e) {
 				running = false;
-			} catch (IOException ignored) { }
+			}
 		}
 	}
 
-	void write(Writer writer, String string, long delay) {
-		mQueue.enqueueDelayed(new DelayedSending(writer, string), delay);
+	void start(ThreadFactory factory) {
+		mThread = factory.newThread(this);
+		mThread.start();
+	}
+
+	void write(OutputStream output, ByteBuffer line, long delay, OutputInterface.Priority priority) {
+		if (priority == OutputInterface.Priority.HIGH)
+			mQueue.enqueueUrgent(new DelayedSending(output, line));
+		else
+			mQueue.enqueueDelayed(new DelayedSending(output, line), delay);
 	}
 }
@@ -0,0 +1,234 @@
+/*
+ * This file is part of Rice.
+ * © Copyright Massimo Neri 2014 <hello@mneri.me>
+ *
+ * Rice is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rice is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rice. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package me.mneri.rice;
+
+import java.nio.charset.Charset;
+
+import me.mneri.rice.text.StringCache;
+
+/**
+ * A view over an unparsed line that only knows where tags, prefix and command are. Raw filters use it to drop lines
+ * before a {@link Message} is built. Instances are reused from line to line and must not be retained.
+ */
+public class RawLine {
+	byte[] mBuffer;
+	StringCache mCache;
+	Charset mCharset;
+	int mCommandCode;
+	int mCommandEnd;
+	int mCommandStart;
+	int mLimit;
+	int mParamsStart;
+	int mPrefixEnd;
+	int mPrefixStart;
+	int mStart;
+	int mTagsEnd;
+	int mTagsStart;
+
+	private boolean mPrefixSplit;
+	private final int[] mPrefixSlices = new int[6];
+
+	RawLine() { }
+
+	public String getCommand() {
+		if (mCommandCode != Commands.UNKNOWN)
+			return Commands.canonical(mCommandCode);
+
+		return new String(mBuffer, mCommandStart, mCommandEnd - mCommandStart, mCharset);
+	}
+
+	public int getCommandCode() {
+		return mCommandCode;
+	}
+
+	public String getHost() {
+		return slice(4);
+	}
+
+	public String getNick() {
+		return slice(0);
+	}
+
+	public String getUser() {
+		return slice(2);
+	}
+
+	public boolean hasPrefix() {
+		return mPrefixStart >= 0;
+	}
+
+	public boolean hostEquals(String host) {
+		return sliceEquals(4, host);
+	}
+
+	public boolean nickEquals(String nick) {
+		return sliceEquals(0, nick);
+	}
+
+	private int[] prefixSlices() {
+		if (!mPrefixSplit) {
+			splitPrefix(mBuffer, mPrefixStart, mPrefixEnd, mPrefixSlices);
+			mPrefixSplit = true;
+		}
+
+		return mPrefixSlices;
+	}
+
+	RawLine reset(byte[] buffer, int offset, int length, Charset charset, StringCache cache) {
+		mBuffer = buffer;
+		mCache = cache;
+		mCharset = charset;
+		mPrefixSplit = false;
+
+		int limit = offset + length;
+
+		// Strip the line terminator if the caller left it there
+		while (limit > offset && (buffer[limit - 1] == '\n' || buffer[limit - 1] == '\r'))
+			limit--;
+
+		mLimit = limit;
+		mStart = offset;
+		int end = offset;
+
+		if (end < limit && buffer[end] == '@') {
+			mTagsStart = ++end;
+			end = skipWord(buffer, end, limit);
+			mTagsEnd = end;
+			end = skipSpaces(buffer, end, limit);
+		} else {
+			mTagsStart = -1;
+			mTagsEnd = -1;
+		}
+
+		if (end < limit && buffer[end] == ':') {
+			mPrefixStart = ++end;
+			end = skipWord(buffer, end, limit);
+			mPrefixEnd = end;
+			end = skipSpaces(buffer, end, limit);
+		} else {
+			mPrefixStart = -1;
+			mPrefixEnd = -1;
+		}
+
+		mCommandStart = end;
+		end = skipWord(buffer, end, limit);
+		mCommandEnd = end;
+		mCommandCode = Commands.code(buffer, mCommandStart, mCommandEnd - mCommandStart);
+		mParamsStart = skipSpaces(buffer, end, limit);
+
+		return this;
+	}
+
+	static int skipSpaces(byte[] buffer, int offset, int limit) {
+		while (offset < limit && buffer[offset] == ' ')
+			offset++;
+
+		return offset;
+	}
+
+	static int skipWord(byte[] buffer, int offset, int limit) {
+		while (offset < limit && buffer[offset] != ' ')
+			offset++;
+
+		return offset;
+	}
+
+	private String slice(int index) {
+		int[] slices = prefixSlices();
+
+		if (slices[index] < 0)
+			return null;
+
+		if (mCache != null)
+			return mCache.get(mBuffer, slices[index], slices[index + 1] - slices[index], mCharset);
+
+		return new String(mBuffer, slices[index], slices[index + 1] - slices[index], mCharset);
+	}
+
+	private boolean sliceEquals(int index, String s) {
+		int[] slices = prefixSlices();
+		int start = slices[index];
+
+		if (start < 0 || s == null)
+			return start < 0 && s == null;
+
+		int length = slices[index + 1] - start;
+
+		// Comparing chars to bytes only works for ASCII, anything else is decoded
+		if (s.length() != length) {
+			for (int i = start; i < start + length; i++) {
+				if (mBuffer[i] < 0)
+					return s.equals(slice(index));
+			}
+
+			return false;
+		}
+
+		for (int i = 0; i < length; i++) {
+			byte b = mBuffer[start + i];
+
+			if (b < 0)
+				return s.equals(slice(index));
+
+			if (s.charAt(i) != b)
+				return false;
+		}
+
+		return true;
+	}
+
+	// Split a nick!user@host prefix into start/end pairs, a start of -1 means the part is missing
+	static void splitPrefix(byte[] buffer, int start, int limit, int[] slices) {
+		for (int i = 0; i < 6; i++)
+			slices[i] = -1;
+
+		if (start < 0)
+			return;
+
+		int end = start;
+
+		// Nick ends with '!' or '@'
+		slices[0] = end;
+
+		while (end < limit && buffer[end] != '!' && buffer[end] != '@')
+			end++;
+
+		slices[1] = end;
+
+		// If there's a '!' we have the username, which ends with '@'
+		if (end < limit && buffer[end] == '!') {
+			slices[2] = ++end;
+
+			while (end < limit && buffer[end] != '@')
+				end++;
+
+			slices[3] = end;
+		}
+
+		// If there's a '@' we have the host name
+		if (end < limit && buffer[end] == '@') {
+			slices[4] = end + 1;
+			slices[5] = limit;
+		}
+	}
+
+	public boolean userEquals(String user) {
+		return sliceEquals(2, user);
+	}
+}
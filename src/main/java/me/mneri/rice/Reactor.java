@@ -0,0 +1,86 @@
+/*
+ * This file is part of Rice.
+ * © Copyright Massimo Neri 2014 <hello@mneri.me>
+ *
+ * Rice is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rice is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rice. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package me.mneri.rice;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed set of event loop threads that connect, read and write for any number of connections. Connections built
+ * with {@link Connection.Builder#reactor(Reactor)} are spread across the loops and don't need threads of their own.
+ */
+public class Reactor {
+	private final ExecutorService mBlocking;
+	private final EventLoop[] mLoops;
+	private final AtomicInteger mNext = new AtomicInteger();
+
+	public Reactor() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	public Reactor(int threads) {
+		if (threads < 1)
+			throw new IllegalArgumentException("A reactor needs at least one thread.");
+
+		mLoops = new EventLoop[threads];
+
+		try {
+			for (int i = 0; i < threads; i++) {
+				mLoops[i] = new EventLoop();
+				mLoops[i].start();
+			}
+		} catch (IOException e) {
+			shutdown();
+			throw new IllegalStateException("Can't open a selector.", e);
+		}
+
+		// Name resolution and TLS handshake tasks block, keep them off the loops
+		mBlocking = Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable);
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	void execute(Runnable task) {
+		mBlocking.execute(task);
+	}
+
+	EventLoop next() {
+		return mLoops[(mNext.getAndIncrement() & Integer.MAX_VALUE) % mLoops.length];
+	}
+
+	void schedule(Runnable task, long delay) {
+		EventLoop loop = next();
+		loop.execute(() -> loop.schedule(task, delay));
+	}
+
+	// Stop the loops; connections still open on this reactor are dropped without notice
+	public void shutdown() {
+		for (EventLoop loop : mLoops) {
+			if (loop != null)
+				loop.quit();
+		}
+
+		if (mBlocking != null)
+			mBlocking.shutdownNow();
+	}
+}
@@ -0,0 +1,502 @@
+/*
+ * This file is part of Rice.
+ * © Copyright Massimo Neri 2014 <hello@mneri.me>
+ *
+ * Rice is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rice is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rice. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package me.mneri.rice;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+
+// Non-blocking socket driven by one of the loops of a Reactor, optionally secured by an SSLEngine. Everything but
+// open(), close() and write() runs on the loop thread.
+class ReactorTransport implements Transport, OutputInterface, EventLoop.Handler {
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+	// Most buffers handed to a single gathering write
+	private static final int MAX_GATHER = 64;
+
+	private SocketChannel mChannel;
+	private volatile boolean mClosed;
+	private boolean mConnected;
+	private Connector mConnector;
+	private boolean mFlushPending;
+	private ByteBuffer[] mGather = new ByteBuffer[MAX_GATHER];
+	private String mHost;
+	private EventLoop.Timer mIdleTimer;
+	private SelectionKey mKey;
+	private long mLastRead;
+	private Listener mListener;
+	private EventLoop mLoop;
+	private ArrayDeque<ByteBuffer> mPending = new ArrayDeque<>();
+	private int mPort;
+	private Reactor mReactor;
+	private LineReader mReader;
+	private int mSoTimeout;
+
+	// TLS only: decrypted bytes on their way to mReader, and encrypted bytes from and to the network
+	private ByteBuffer mAppIn;
+	private SSLEngine mEngine;
+	private ByteBuffer mNetIn;
+	private ByteBuffer mNetOut;
+	private SSLContext mSslContext;
+	private boolean mTaskRunning;
+
+	// A null SSL context means a plain text connection
+	ReactorTransport(Reactor reactor, Connector connector, String host, int port, int soTimeout,
+			SSLContext sslContext, LineReader reader) {
+		mConnector = connector;
+		mReader = reader;
+		mReactor = reactor;
+		mLoop = reactor.next();
+		mHost = host;
+		mPort = port;
+		mSoTimeout = soTimeout;
+		mSslContext = sslContext;
+	}
+
+	@Override
+	public void close() {
+		mClosed = true;
+		mLoop.execute(this::release);
+	}
+
+	// Hand decrypted bytes over to the line reader
+	private void deliver() throws IOException {
+		mAppIn.flip();
+
+		while (mAppIn.hasRemaining() && !mClosed) {
+			ByteBuffer dst = mReader.readBuffer();
+			int count = Math.min(dst.remaining(), mAppIn.remaining());
+			int limit = mAppIn.limit();
+			mAppIn.limit(mAppIn.position() + count);
+			dst.put(mAppIn);
+			mAppIn.limit(limit);
+			LineBatch batch = mReader.advance(count);
+
+			if (batch != null)
+				mListener.onBatch(batch);
+		}
+
+		mAppIn.clear();
+	}
+
+	private void enqueue(ByteBuffer buffer) {
+		if (mClosed || mKey == null)
+			return;
+
+		mPending.add(buffer);
+
+		// Lines queued during the same turn of the loop go out together
+		if (!mFlushPending) {
+			mFlushPending = true;
+			mLoop.execute(() -> {
+				mFlushPending = false;
+
+				if (!mClosed)
+					flush();
+			});
+		}
+	}
+
+	private void fail() {
+		if (mClosed)
+			return;
+
+		mClosed = true;
+		release();
+		mListener.onDisconnect();
+	}
+
+	private void flush() {
+		try {
+			if (mEngine != null)
+				flushTls();
+			else
+				flushPlain();
+
+			updateInterest();
+		} catch (IOException e) {
+			fail();
+		}
+	}
+
+	private void flushPlain() throws IOException {
+		while (!mPending.isEmpty()) {
+			int count = 0;
+			long wanted = 0;
+			Iterator<ByteBuffer> pending = mPending.iterator();
+
+			while (count < MAX_GATHER && pending.hasNext()) {
+				mGather[count] = pending.next();
+				wanted += mGather[count++].remaining();
+			}
+
+			long written = mChannel.write(mGather, 0, count);
+			Arrays.fill(mGather, 0, count, null);
+
+			while (!mPending.isEmpty() && !mPending.peek().hasRemaining())
+				mPending.poll();
+
+			// The socket buffer is full, wait until the channel is writable again
+			if (written < wanted)
+				break;
+		}
+	}
+
+	private void flushTls() throws IOException {
+		if (!writeNetOut() || !mConnected)
+			return;
+
+		while (!mPending.isEmpty()) {
+			int count = 0;
+			Iterator<ByteBuffer> pending = mPending.iterator();
+
+			while (count < MAX_GATHER && pending.hasNext())
+				mGather[count++] = pending.next();
+
+			// The engine packs as many lines as fit in a record
+			SSLEngineResult result = mEngine.wrap(mGather, 0, count, mNetOut);
+			Arrays.fill(mGather, 0, count, null);
+
+			while (!mPending.isEmpty() && !mPending.peek().hasRemaining())
+				mPending.poll();
+
+			if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+				fail();
+				return;
+			}
+
+			if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW && mNetOut.position() == 0)
+				mNetOut = ByteBuffer.allocate(mEngine.getSession().getPacketBufferSize());
+
+			if (!writeNetOut())
+				break;
+		}
+	}
+
+	// Drive the TLS handshake as far as it can go without waiting for the network
+	private void handshake() throws IOException {
+		while (!mClosed && !mTaskRunning) {
+			switch (mEngine.getHandshakeStatus()) {
+				case NEED_WRAP:
+					SSLEngineResult result = mEngine.wrap(EMPTY, mNetOut);
+
+					if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+						fail();
+						return;
+					}
+
+					if (!writeNetOut())
+						return;
+
+					break;
+				case NEED_UNWRAP:
+					if (!unwrap())
+						return;
+
+					break;
+				case NEED_TASK:
+					runDelegatedTasks();
+					return;
+				default:
+					if (!mConnected) {
+						mConnected = true;
+						mListener.onConnect(this);
+						// The server may have sent its first lines along with the end of the handshake
+						unwrapAll();
+					}
+
+					return;
+			}
+		}
+	}
+
+	private void onConnected() throws IOException {
+		mKey.interestOps(SelectionKey.OP_READ);
+		mLastRead = System.nanoTime();
+		mIdleTimer = mLoop.schedule(this::onIdleCheck, mSoTimeout);
+
+		if (mSslContext == null) {
+			mConnected = true;
+			mListener.onConnect(this);
+			return;
+		}
+
+		// Engines created for the same host and port resume the sessions cached by the shared context
+		mEngine = mSslContext.createSSLEngine(mHost, mPort);
+		mEngine.setUseClientMode(true);
+		mAppIn = ByteBuffer.allocate(mEngine.getSession().getApplicationBufferSize());
+		mNetIn = ByteBuffer.allocate(mEngine.getSession().getPacketBufferSize());
+		mNetOut = ByteBuffer.allocate(mEngine.getSession().getPacketBufferSize());
+		mEngine.beginHandshake();
+		handshake();
+		updateInterest();
+	}
+
+	// The blocking transport gives up when a read times out, do the same
+	private void onIdleCheck() {
+		if (mClosed)
+			return;
+
+		long idle = (System.nanoTime() - mLastRead) / 1000000;
+
+		if (idle >= mSoTimeout)
+			fail();
+		else
+			mIdleTimer = mLoop.schedule(this::onIdleCheck, mSoTimeout - idle);
+	}
+
+	@Override
+	public void onError(RuntimeException e) {
+		fail();
+	}
+
+	@Override
+	public void onReady(SelectionKey key) {
+		try {
+			if (key.isValid() && key.isWritable()) {
+				flush();
+
+				if (mEngine != null && !mConnected && !mClosed)
+					handshake();
+			}
+
+			if (key.isValid() && key.isReadable())
+				read();
+
+			if (key.isValid())
+				updateInterest();
+		} catch (IOException e) {
+			fail();
+		}
+	}
+
+	@Override
+	public void open(Listener listener) {
+		mListener = listener;
+
+		// Resolution may block, the connection attempts themselves run on the loop
+		mReactor.execute(() -> mConnector.connect(mHost, mPort, mLoop, new Connector.Callback() {
+			@Override
+			public void onConnect(SelectionKey key) {
+				mKey = key;
+				mChannel = (SocketChannel) key.channel();
+				key.attach(ReactorTransport.this);
+
+				if (mClosed) {
+					release();
+					return;
+				}
+
+				try {
+					onConnected();
+				} catch (IOException e) {
+					fail();
+				} catch (RuntimeException e) {
+					// The listener threw from onConnect(); the connector reports it
+					fail();
+					throw e;
+				}
+			}
+
+			@Override
+			public void onFailure(IOException e) {
+				mLoop.execute(ReactorTransport.this::fail);
+			}
+		}));
+	}
+
+	private void read() throws IOException {
+		if (mEngine == null) {
+			int read = mChannel.read(mReader.readBuffer());
+
+			if (read < 0) {
+				fail();
+				return;
+			}
+
+			mLastRead = System.nanoTime();
+			LineBatch batch = mReader.advance(read);
+
+			if (batch != null)
+				mListener.onBatch(batch);
+
+			return;
+		}
+
+		if (mChannel.read(mNetIn) < 0) {
+			fail();
+			return;
+		}
+
+		mLastRead = System.nanoTime();
+
+		// The engine is busy with a delegated task, the bytes wait in mNetIn
+		if (mTaskRunning)
+			return;
+
+		if (mConnected)
+			unwrapAll();
+		else
+			handshake();
+	}
+
+	private void release() {
+		if (mIdleTimer != null)
+			mIdleTimer.cancel();
+
+		if (mChannel != null) {
+			// Be polite to TLS servers, but don't wait for them
+			if (mEngine != null && mChannel.isConnected()) {
+				try {
+					mEngine.closeOutbound();
+					mEngine.wrap(EMPTY, mNetOut);
+					mNetOut.flip();
+					mChannel.write(mNetOut);
+				} catch (IOException ignored) { }
+			}
+
+			try { mChannel.close(); } catch (IOException ignored) { }
+		}
+
+		mPending.clear();
+	}
+
+	private void runDelegatedTasks() {
+		mTaskRunning = true;
+
+		// Certificate checks and key exchange are slow: run them off the loop and come back when they are done
+		mReactor.execute(() -> {
+			Runnable task;
+
+			while ((task = mEngine.getDelegatedTask()) != null)
+				task.run();
+
+			mLoop.execute(() -> {
+				mTaskRunning = false;
+
+				if (mClosed)
+					return;
+
+				try {
+					handshake();
+
+					if (mConnected)
+						unwrapAll();
+
+					flush();
+				} catch (IOException e) {
+					fail();
+				} catch (RuntimeException e) {
+					fail();
+					throw e;
+				}
+			});
+		});
+	}
+
+	// Unwrap what is in mNetIn; returns false when more bytes are needed from the network
+	private boolean unwrap() throws IOException {
+		mNetIn.flip();
+		SSLEngineResult result;
+
+		try {
+			result = mEngine.unwrap(mNetIn, mAppIn);
+		} finally {
+			mNetIn.compact();
+		}
+
+		switch (result.getStatus()) {
+			case BUFFER_OVERFLOW:
+				if (mAppIn.position() > 0)
+					deliver();
+				else
+					mAppIn = ByteBuffer.allocate(mEngine.getSession().getApplicationBufferSize());
+
+				return true;
+			case BUFFER_UNDERFLOW:
+				// A record larger than the buffer
+				if (mNetIn.position() == mNetIn.capacity()) {
+					int size = Math.max(mNetIn.capacity() * 2, mEngine.getSession().getPacketBufferSize());
+					mNetIn.flip();
+					mNetIn = ByteBuffer.allocate(size).put(mNetIn);
+				}
+
+				return false;
+			case CLOSED:
+				fail();
+				return false;
+			default:
+				if (result.bytesProduced() > 0)
+					deliver();
+
+				return result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+		}
+	}
+
+	private void unwrapAll() throws IOException {
+		while (!mClosed && !mTaskRunning && mNetIn.position() > 0 && unwrap()) {
+			// Post-handshake messages, such as a key update, may need an answer
+			if (mEngine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+				handshake();
+				flushTls();
+			}
+		}
+	}
+
+	private void updateInterest() {
+		if (mClosed || !mKey.isValid())
+			return;
+
+		boolean writing = !mPending.isEmpty() || (mNetOut != null && mNetOut.position() > 0);
+		int ops = (writing ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+
+		if (mKey.interestOps() != ops)
+			mKey.interestOps(ops);
+	}
+
+	@Override
+	public void write(ByteBuffer buffer, long delay, Priority priority) {
+		// Delayed lines wait in timers, so skipping the delay is enough to get ahead of them
+		if (delay > 0 && priority != Priority.HIGH)
+			mLoop.execute(() -> mLoop.schedule(() -> enqueue(buffer), delay));
+		else if (mLoop.inLoop())
+			enqueue(buffer);
+		else
+			mLoop.execute(() -> enqueue(buffer));
+	}
+
+	// Send what the engine produced; returns false if some of it has to wait for the channel to be writable
+	private boolean writeNetOut() throws IOException {
+		mNetOut.flip();
+
+		try {
+			mChannel.write(mNetOut);
+			return !mNetOut.hasRemaining();
+		} finally {
+			mNetOut.compact();
+		}
+	}
+}
@@ -0,0 +1,32 @@
+/*
+ * This file is part of Rice.
+ * © Copyright Massimo Neri 2014 <hello@mneri.me>
+ *
+ * Rice is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rice is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rice. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package me.mneri.rice;
+
+// The data of Connection.RECONNECT events
+public class ReconnectAttempt {
+	public final int attempt;
+	public final boolean circuitOpen;
+	public final long delay;
+
+	ReconnectAttempt(int attempt, long delay, boolean circuitOpen) {
+		this.attempt = attempt;
+		this.delay = delay;
+		this.circuitOpen = circuitOpen;
+	}
+}
@@ -0,0 +1,79 @@
+/*
+ * This file is part of Rice.
+ * © Copyright Massimo Neri 2014 <hello@mneri.me>
+ *
+ * Rice is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rice is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rice. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package me.mneri.rice;
+
+import java.nio.file.Path;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Recorded traffic played back into a {@link Connection} instead of a server, for benchmarks and reproducible tests.
+ * The capture is either a file of raw IRC lines as the server sent them or a log written by {@link Capture}, of which
+ * the incoming lines are played, rotated files included; it is memory-mapped and fed through the same reader, filters
+ * and handlers as live traffic. Whatever the connection sends is discarded.
+ *
+ * A connection built with {@link Connection.Builder#replay(Replay)} plays the file every time it is started and
+ * closes when the end is reached.
+ */
+public class Replay {
+	private final Mode mMode;
+	private final Path mPath;
+
+	volatile long mBytes;
+	volatile long mElapsed;
+	volatile long mLines;
+
+	public enum Mode {
+		// As fast as the pipeline can take it
+		FULL_SPEED,
+		// Lines carrying a time tag are delivered as far apart as their timestamps are
+		TIMESTAMPS
+	}
+
+	public Replay(Path path, Mode mode) {
+		mPath = path;
+		mMode = mode;
+	}
+
+	// Bytes fed to the connection by the last, or current, run
+	public long getBytes() {
+		return mBytes;
+	}
+
+	// Duration of the last run, or of the current run so far
+	public long getElapsedNanos() {
+		return mElapsed;
+	}
+
+	// Lines fed to the connection by the last, or current, run
+	public long getLines() {
+		return mLines;
+	}
+
+	public Mode getMode() {
+		return mMode;
+	}
+
+	public Path getPath() {
+		return mPath;
+	}
+
+	Transport newTransport(LineReader reader, ThreadFactory threads) {
+		return new ReplayTransport(this, reader, threads);
+	}
+}
@@ -0,0 +1,253 @@
+/*
+ * This file is part of Rice.
+ * © Copyright Massimo Neri 2014 <hello@mneri.me>
+ *
+ * Rice is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rice is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rice. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package me.mneri.rice;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+
+// Feeds a memory-mapped capture to the listener as if it came from a socket. Captures are either text files of raw
+// lines or the binary logs written by Capture, of which only the incoming lines are played.
+class ReplayTransport implements Transport, OutputInterface {
+	// Binary records are gathered into chunks of this size before going to the reader
+	private static final int CHUNK_SIZE = 64 * 1024;
+	private static final byte[] CRLF = { '\r', '\n' };
+	// Mapped a window at a time, so that captures can be larger than a MappedByteBuffer
+	private static final long WINDOW = 64 * 1024 * 1024;
+
+	private volatile boolean mClosed;
+	private Listener mListener;
+	private LineReader mReader;
+	private Replay mReplay;
+	private long mStart;
+	private byte[] mTags = new byte[0];
+	private ThreadFactory mThreads;
+
+	// Where the timeline of the capture and the clock were when the first timestamp was seen
+	private long mFirstStamp = -1;
+	private long mFirstNanos;
+
+	ReplayTransport(Replay replay, LineReader reader, ThreadFactory threads) {
+		mReplay = replay;
+		mReader = reader;
+		mThreads = threads;
+	}
+
+	@Override
+	public void close() {
+		mClosed = true;
+	}
+
+	private static boolean isCapture(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			ByteBuffer magic = ByteBuffer.allocate(4);
+
+			while (magic.hasRemaining() && channel.read(magic) >= 0);
+
+			return !magic.hasRemaining() && magic.getInt(0) == Capture.MAGIC;
+		}
+	}
+
+	private void feed(ByteBuffer source) throws IOException {
+		while (source.hasRemaining() && !mClosed) {
+			ByteBuffer destination = mReader.readBuffer();
+			int count = Math.min(destination.remaining(), source.remaining());
+			int limit = source.limit();
+			source.limit(source.position() + count);
+			destination.put(source);
+			source.limit(limit);
+			LineBatch batch = mReader.advance(count);
+
+			if (batch != null) {
+				mListener.onBatch(batch);
+				mReplay.mLines += batch.size();
+			}
+
+			mReplay.mBytes += count;
+			mReplay.mElapsed = System.nanoTime() - mStart;
+		}
+	}
+
+	// Feed the line between start and end once its timestamp is due
+	private void feedLine(MappedByteBuffer window, int start, int end) throws IOException, InterruptedException {
+		if (window.get(start) == '@') {
+			int tagsEnd = start + 1;
+
+			while (tagsEnd < end && window.get(tagsEnd) != ' ')
+				tagsEnd++;
+
+			if (mTags.length < tagsEnd - start)
+				mTags = new byte[tagsEnd - start];
+
+			window.position(start);
+			window.get(mTags, 0, tagsEnd - start);
+			long time = Message.parseTime(mTags, 1, tagsEnd - start, -1);
+
+			if (time >= 0)
+				waitFor(time * 1000000);
+		}
+
+		int limit = window.limit();
+		window.limit(end).position(start);
+		feed(window);
+		window.limit(limit);
+	}
+
+	// Feed one window line by line; returns how many bytes were consumed
+	private int feedLines(MappedByteBuffer window, boolean last) throws IOException, InterruptedException {
+		int start = 0;
+		int limit = window.limit();
+
+		for (int i = 0; i < limit && !mClosed; i++) {
+			if (window.get(i) == '\n') {
+				feedLine(window, start, i + 1);
+				start = i + 1;
+			}
+		}
+
+		// A line without a newline at the very end of the capture
+		if (last && start < limit && !mClosed) {
+			feedLine(window, start, limit);
+			start = limit;
+		}
+
+		return start;
+	}
+
+	@Override
+	public void open(Listener listener) {
+		mListener = listener;
+
+		mThreads.newThread(() -> {
+			mStart = System.nanoTime();
+			mReplay.mBytes = 0;
+			mReplay.mLines = 0;
+			mReplay.mElapsed = 0;
+			listener.onConnect(this);
+
+			try {
+				List<Path> files = CaptureReader.files(mReplay.getPath());
+
+				if (!files.isEmpty() && isCapture(files.get(0)))
+					playCapture(files);
+				else
+					playText(mReplay.getPath());
+			} catch (IOException | InterruptedException ignored) { }
+
+			if (!mClosed)
+				listener.onDisconnect();
+		}).start();
+	}
+
+	private void playCapture(List<Path> files) throws IOException, InterruptedException {
+		boolean paced = (mReplay.getMode() == Replay.Mode.TIMESTAMPS);
+		ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+
+		for (Path file : files) {
+			try (CaptureReader capture = new CaptureReader(file)) {
+				while (!mClosed && capture.next()) {
+					if (capture.getDirection() != Capture.Direction.INBOUND)
+						continue;
+
+					ByteBuffer line = capture.line();
+
+					if (paced)
+						waitFor(capture.getTimestamp());
+
+					if (chunk.remaining() < line.remaining() + CRLF.length) {
+						chunk.flip();
+						feed(chunk);
+						chunk.clear();
+					}
+
+					if (chunk.remaining() < line.remaining() + CRLF.length) {
+						feed(line);
+						feed(ByteBuffer.wrap(CRLF));
+					} else {
+						chunk.put(line).put(CRLF);
+					}
+
+					if (paced) {
+						chunk.flip();
+						feed(chunk);
+						chunk.clear();
+					}
+				}
+			}
+		}
+
+		chunk.flip();
+		feed(chunk);
+	}
+
+	private void playText(Path path) throws IOException, InterruptedException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long size = channel.size();
+			long position = 0;
+
+			while (position < size && !mClosed) {
+				long length = Math.min(WINDOW, size - position);
+				boolean last = (position + length == size);
+				MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+
+				if (mReplay.getMode() == Replay.Mode.FULL_SPEED) {
+					feed(window);
+					position += length;
+				} else {
+					int consumed = feedLines(window, last);
+
+					// A line longer than a whole window goes to the reader as it is
+					position += (consumed > 0 ? consumed : length);
+
+					if (consumed == 0) {
+						window.position(0);
+						feed(window);
+					}
+				}
+			}
+
+			// The reader only hands out terminated lines
+			feed(ByteBuffer.wrap(CRLF));
+		}
+	}
+
+	// Sleep until the time of the capture, in nanoseconds, is as far from the first one as the clock is
+	private void waitFor(long stamp) throws InterruptedException {
+		if (mFirstStamp < 0) {
+			mFirstStamp = stamp;
+			mFirstNanos = System.nanoTime();
+			return;
+		}
+
+		long wait = (stamp - mFirstStamp) - (System.nanoTime() - mFirstNanos);
+
+		if (wait > 0)
+			Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+	}
+
+	@Override
+	public void write(ByteBuffer line, long delay, Priority priority) {
+		// Nobody is listening
+	}
+}
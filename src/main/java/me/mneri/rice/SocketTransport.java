@@ -0,0 +1,114 @@
+/*
+ * This file is part of Rice.
+ * © Copyright Massimo Neri 2014 <hello@mneri.me>
+ *
+ * Rice is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rice is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rice. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package me.mneri.rice;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.ThreadFactory;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+
+// Blocking sockets: a thread to connect, an InputThread to read and the shared OutputThread to write
+class SocketTransport implements Transport {
+	private boolean mClosed;
+	private Connector mConnector;
+	private String mHost;
+	private InputThread mInputThread;
+	private OutputInterface mOutputInterface;
+	private LineReader mReader;
+	private int mPort;
+	private Socket mSocket;
+	private int mSoTimeout;
+	private SSLContext mSslContext;
+	private ThreadFactory mThreads;
+	private WriterTopology mTopology;
+
+	// A null SSL context means a plain text connection
+	SocketTransport(Connector connector, String host, int port, int soTimeout, SSLContext sslContext,
+			LineReader reader, WriterTopology topology, ThreadFactory threads) {
+		mConnector = connector;
+		mReader = reader;
+		mHost = host;
+		mPort = port;
+		mSoTimeout = soTimeout;
+		mSslContext = sslContext;
+		mThreads = threads;
+		mTopology = topology;
+	}
+
+	@Override
+	public synchronized void close() {
+		mClosed = true;
+
+		OutputInterfaceFactory f = OutputInterfaceFactory.instance();
+		//@formatter:off
+		try { mSocket.close(); } catch (Exception ignored) { } finally { mSocket = null; }
+		try { mInputThread.quit(); } catch (Exception ignored) { } finally { mInputThread = null; }
+		try { f.release(mOutputInterface); } catch (Exception ignored) { } finally { mOutputInterface = null; }
+		//@formatter:on
+	}
+
+	private Socket createSocket() throws Exception {
+		Socket socket = mConnector.connect(mHost, mPort, mThreads);
+		socket.setSoTimeout(mSoTimeout);
+
+		if (mSslContext != null) {
+			SSLSocket sslSocket = (SSLSocket) mSslContext.getSocketFactory().createSocket(socket, mHost, mPort, true);
+			sslSocket.startHandshake();
+			return sslSocket;
+		}
+
+		return socket;
+	}
+
+	@Override
+	public void open(final Listener listener) {
+		mThreads.newThread(() -> {
+			OutputInterface output;
+
+			try {
+				Socket socket = createSocket();
+
+				synchronized (this) {
+					// Closed while we were connecting
+					if (mClosed) {
+						try { socket.close(); } catch (IOException ignored) { }
+						return;
+					}
+
+					mSocket = socket;
+					mSocket.setSoTimeout(mSoTimeout);
+					mInputThread = new InputThread(mSocket.getInputStream(), mReader, listener);
+					mInputThread.start(mThreads);
+					OutputInterfaceFactory outFactory = OutputInterfaceFactory.instance();
+					BufferedOutputStream outStream = new BufferedOutputStream(mSocket.getOutputStream());
+					mOutputInterface = outFactory.createInterface(outStream, mTopology, mThreads);
+					output = mOutputInterface;
+				}
+			} catch (Exception e) {
+				listener.onDisconnect();
+				return;
+			}
+
+			listener.onConnect(output);
+		}).start();
+	}
+}
@@ -0,0 +1,46 @@
+/*
+ * This file is part of Rice.
+ * © Copyright Massimo Neri 2014 <hello@mneri.me>
+ *
+ * Rice is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rice is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rice. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package me.mneri.rice;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+// The TLS context shared by every secure connection that doesn't bring its own. Sharing it shares its session cache,
+// so a reconnect to the same host and port can resume the previous session instead of doing a full handshake.
+class SslContexts {
+	private static SSLContext _default;
+
+	private SslContexts() { }
+
+	static synchronized SSLContext defaultContext() throws GeneralSecurityException {
+		if (_default == null) {
+			SSLContext sslContext = SSLContext.getInstance("TLS");
+			String algorithm = TrustManagerFactory.getDefaultAlgorithm();
+			TrustManagerFactory tmFactory = TrustManagerFactory.getInstance(algorithm);
+			tmFactory.init((KeyStore) null);
+			sslContext.init(null, tmFactory.getTrustManagers(), null);
+			_default = sslContext;
+		}
+
+		return _default;
+	}
+}
@@ -0,0 +1,46 @@
+/*
+ * This file is part of Rice.
+ * © Copyright Massimo Neri 2014 <hello@mneri.me>
+ *
+ * Rice is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rice is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rice. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package me.mneri.rice;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+class StreamOutputInterface implements OutputInterface {
+	private OutputThread mThread;
+	private OutputStream mOutput;
+
+	StreamOutputInterface(OutputThread thread, OutputStream output) {
+		mThread = thread;
+		mOutput = output;
+	}
+
+	// Drop the lines that are still waiting for their turn
+	void cancel() {
+		mThread.cancel(mOutput);
+	}
+
+	OutputThread thread() {
+		return mThread;
+	}
+
+	@Override
+	public void write(ByteBuffer line, long delay, Priority priority) {
+		mThread.write(mOutput, line, delay, priority);
+	}
+}
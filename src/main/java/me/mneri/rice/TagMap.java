@@ -0,0 +1,282 @@
+/*
+ * This file is part of Rice.
+ * © Copyright Massimo Neri 2014 <hello@mneri.me>
+ *
+ * Rice is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rice is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rice. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package me.mneri.rice;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An immutable map of IRCv3 message tags. Entries are kept in flat arrays of offsets into the message buffer; keys and
+ * values are decoded, and values unescaped, the first time they are read.
+ */
+public class TagMap extends AbstractMap<String, String> {
+	static final TagMap EMPTY = new TagMap(null, null, 0);
+
+	private final byte[] mBuffer;
+	private final Charset mCharset;
+	private final String[] mKeys;
+	// Four offsets per entry: key start, key end, value start (-1 without a value), value end
+	private final int[] mSlices;
+	private int mSize;
+	private final String[] mValues;
+
+	private TagMap(byte[] buffer, Charset charset, int capacity) {
+		mBuffer = buffer;
+		mCharset = charset;
+		mSlices = new int[capacity * 4];
+		mKeys = new String[capacity];
+		mValues = new String[capacity];
+	}
+
+	static TagMap parse(byte[] buffer, int start, int end, Charset charset) {
+		int capacity = (start < end ? 1 : 0);
+
+		for (int i = start; i < end; i++) {
+			if (buffer[i] == ';')
+				capacity++;
+		}
+
+		TagMap tags = new TagMap(buffer, charset, capacity);
+
+		while (start < end) {
+			int limit = start;
+			int equals = -1;
+
+			while (limit < end && buffer[limit] != ';') {
+				if (equals < 0 && buffer[limit] == '=')
+					equals = limit;
+
+				limit++;
+			}
+
+			if (limit > start) {
+				if (equals < 0)
+					tags.addSlice(start, limit, -1, -1);
+				else
+					tags.addSlice(start, equals, equals + 1, limit);
+			}
+
+			start = limit + 1;
+		}
+
+		return tags;
+	}
+
+	private void addSlice(int keyStart, int keyEnd, int valueStart, int valueEnd) {
+		// When a key is repeated the last value wins
+		int index = indexOf(keyStart, keyEnd);
+
+		if (index < 0)
+			index = mSize++;
+
+		mSlices[index * 4] = keyStart;
+		mSlices[index * 4 + 1] = keyEnd;
+		mSlices[index * 4 + 2] = valueStart;
+		mSlices[index * 4 + 3] = valueEnd;
+		mKeys[index] = null;
+		mValues[index] = null;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return key instanceof String && indexOf((String) key) >= 0;
+	}
+
+	@Override
+	public Set<Entry<String, String>> entrySet() {
+		return new AbstractSet<Entry<String, String>>() {
+			@Override
+			public Iterator<Entry<String, String>> iterator() {
+				return new Iterator<Entry<String, String>>() {
+					private int mIndex;
+
+					@Override
+					public boolean hasNext() {
+						return mIndex < mSize;
+					}
+
+					@Override
+					public Entry<String, String> next() {
+						if (mIndex >= mSize)
+							throw new NoSuchElementException();
+
+						int index = mIndex++;
+						return new SimpleImmutableEntry<>(keyAt(index), valueAt(index));
+					}
+
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return mSize;
+			}
+		};
+	}
+
+	@Override
+	public String get(Object key) {
+		if (!(key instanceof String))
+			return null;
+
+		int index = indexOf((String) key);
+		return (index >= 0 ? valueAt(index) : null);
+	}
+
+	private int indexOf(int keyStart, int keyEnd) {
+		for (int i = 0; i < mSize; i++) {
+			int start = mSlices[i * 4];
+
+			if (start >= 0 && mSlices[i * 4 + 1] - start == keyEnd - keyStart) {
+				int j = 0;
+
+				while (j < keyEnd - keyStart && mBuffer[start + j] == mBuffer[keyStart + j])
+					j++;
+
+				if (j == keyEnd - keyStart)
+					return i;
+			}
+		}
+
+		return -1;
+	}
+
+	private int indexOf(String key) {
+		for (int i = 0; i < mSize; i++) {
+			if (mKeys[i] != null) {
+				if (mKeys[i].equals(key))
+					return i;
+			} else if (regionMatches(key, i)) {
+				return i;
+			}
+		}
+
+		return -1;
+	}
+
+	private String keyAt(int index) {
+		String key = mKeys[index];
+
+		if (key == null) {
+			int start = mSlices[index * 4];
+			key = new String(mBuffer, start, mSlices[index * 4 + 1] - start, mCharset);
+			mKeys[index] = key;
+		}
+
+		return key;
+	}
+
+	// Tag keys are ASCII, so they can be compared to the buffer without decoding
+	private boolean regionMatches(String key, int index) {
+		int start = mSlices[index * 4];
+		int length = mSlices[index * 4 + 1] - start;
+
+		if (key.length() != length)
+			return false;
+
+		for (int i = 0; i < length; i++) {
+			if (key.charAt(i) != mBuffer[start + i])
+				return false;
+		}
+
+		return true;
+	}
+
+	@Override
+	public int size() {
+		return mSize;
+	}
+
+	private String valueAt(int index) {
+		String value = mValues[index];
+
+		if (value == null && mSlices[index * 4 + 2] >= 0) {
+			value = unescape(mBuffer, mSlices[index * 4 + 2], mSlices[index * 4 + 3], mCharset);
+			mValues[index] = value;
+		}
+
+		return value;
+	}
+
+	public static void escape(Appendable out, CharSequence value) throws IOException {
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+
+			//@formatter:off
+			switch (c) {
+				case ';':  out.append("\\:");  break;
+				case ' ':  out.append("\\s");  break;
+				case '\\': out.append("\\\\"); break;
+				case '\r': out.append("\\r");  break;
+				case '\n': out.append("\\n");  break;
+				default:   out.append(c);
+			}
+			//@formatter:on
+		}
+	}
+
+	static String unescape(byte[] buffer, int start, int end, Charset charset) {
+		int i = start;
+
+		while (i < end && buffer[i] != '\\')
+			i++;
+
+		// Most values have nothing to unescape
+		if (i == end)
+			return new String(buffer, start, end - start, charset);
+
+		byte[] unescaped = new byte[end - start];
+		int length = i - start;
+		System.arraycopy(buffer, start, unescaped, 0, length);
+
+		while (i < end) {
+			byte b = buffer[i++];
+
+			if (b == '\\') {
+				// A lone backslash at the end of the value is dropped
+				if (i == end)
+					break;
+
+				b = buffer[i++];
+
+				//@formatter:off
+				switch (b) {
+					case ':': b = ';';  break;
+					case 's': b = ' ';  break;
+					case 'r': b = '\r'; break;
+					case 'n': b = '\n'; break;
+				}
+				//@formatter:on
+			}
+
+			unescaped[length++] = b;
+		}
+
+		return new String(unescaped, 0, length, charset);
+	}
+}
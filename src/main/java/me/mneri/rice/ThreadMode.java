@@ -0,0 +1,68 @@
+/*
+ * This file is part of Rice.
+ * © Copyright Massimo Neri 2014 <hello@mneri.me>
+ *
+ * Rice is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rice is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rice. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package me.mneri.rice;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The kind of threads a connection uses for blocking I/O: connecting, reading, reconnecting and DCC. Virtual threads
+ * need Java 21; on older runtimes {@link #VIRTUAL} creates platform threads, exactly like {@link #PLATFORM}.
+ */
+public enum ThreadMode implements ThreadFactory {
+	PLATFORM {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			return new Thread(runnable);
+		}
+	},
+	VIRTUAL {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			return VirtualThreads.FACTORY.newThread(runnable);
+		}
+	};
+
+	// Looked up reflectively: the Gradle 2.1 build compiles at Java 7 source level and can't produce a multi-release
+	// jar with a Java 21 variant, and the library has to keep running on Java 8. The factory of a Thread.Builder is
+	// safe to share between threads, the builder itself isn't.
+	private static class VirtualThreads {
+		static final ThreadFactory FACTORY;
+		static final boolean SUPPORTED;
+
+		static {
+			ThreadFactory factory = null;
+
+			try {
+				Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+				factory = (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory")
+						.invoke(builder);
+			} catch (Exception ignored) {
+				// Older than Java 21
+			}
+
+			FACTORY = (factory != null ? factory : PLATFORM);
+			SUPPORTED = (factory != null);
+		}
+	}
+
+	// Whether VIRTUAL really creates virtual threads on this runtime
+	public static boolean isVirtualSupported() {
+		return VirtualThreads.SUPPORTED;
+	}
+}
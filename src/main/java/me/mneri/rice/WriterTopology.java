@@ -0,0 +1,64 @@
+/*
+ * This file is part of Rice.
+ * © Copyright Massimo Neri 2014 <hello@mneri.me>
+ *
+ * Rice is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rice is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rice. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package me.mneri.rice;
+
+/**
+ * How blocking connections share the threads that write to their sockets. With a shared writer a socket that stops
+ * draining holds up every connection; a writer per connection isolates them completely, while sharding bounds the
+ * damage to the connections on the same shard.
+ */
+public final class WriterTopology {
+	private static final WriterTopology PER_CONNECTION = new WriterTopology(0);
+	private static final WriterTopology SHARED = new WriterTopology(1);
+
+	private final int mShards;
+
+	private WriterTopology(int shards) {
+		mShards = shards;
+	}
+
+	public static WriterTopology perConnection() {
+		return PER_CONNECTION;
+	}
+
+	public static WriterTopology shared() {
+		return SHARED;
+	}
+
+	// Connections are spread over the writers by hash; connections asking for the same count share the same writers
+	public static WriterTopology sharded(int writers) {
+		if (writers < 1)
+			throw new IllegalArgumentException("There must be at least one writer.");
+
+		return (writers == 1 ? SHARED : new WriterTopology(writers));
+	}
+
+	boolean isPerConnection() {
+		return mShards == 0;
+	}
+
+	int shards() {
+		return mShards;
+	}
+
+	@Override
+	public String toString() {
+		return (isPerConnection() ? "per connection" : mShards + " shared");
+	}
+}
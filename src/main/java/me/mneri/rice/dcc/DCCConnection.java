@@ -24,6 +24,7 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.net.Socket;
+import java.util.concurrent.ThreadFactory;
 
 import me.mneri.rice.event.Event;
 import me.mneri.rice.event.EventEmitter;
@@ -53,14 +54,14 @@ class DCCConnection extends EventEmitter {
 
 	}
 
-	DCCConnection(Socket socket) {
+	DCCConnection(Socket socket, ThreadFactory threads) {
 		mSocket = socket;
 
 		try {
 			mReader = new BufferedReader(new InputStreamReader(mSocket.getInputStream()));
 			mWriter = new BufferedWriter(new OutputStreamWriter(mSocket.getOutputStream()));
 			mInput = new InputThread(mReader, new InputThreadObserver());
-			mInput.start();
+			mInput.start(threads);
 		} catch (IOException ignored) {
 		}
 	}
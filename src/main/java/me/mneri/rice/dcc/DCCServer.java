@@ -21,6 +21,7 @@ package me.mneri.rice.dcc;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.concurrent.ThreadFactory;
 
 import me.mneri.rice.event.Event;
 import me.mneri.rice.event.EventEmitter;
@@ -33,8 +34,10 @@ class DCCServer extends EventEmitter {
 
 	private Socket mClient;
 	private ServerSocket mSocket;
+	private ThreadFactory mThreads;
 
-	DCCServer() {
+	DCCServer(ThreadFactory threads) {
+		mThreads = threads;
 	}
 
 	int getLocalPort() {
@@ -42,7 +45,7 @@ class DCCServer extends EventEmitter {
 	}
 
 	void start() {
-		new Thread(new Runnable() {
+		mThreads.newThread(new Runnable() {
 			@Override
 			public void run() {
 				try {
@@ -52,7 +55,7 @@ class DCCServer extends EventEmitter {
 
 					mClient = mSocket.accept();
 					mSocket.close();
-					emit(new Event(CONNECTION, new DCCConnection(mClient)));
+					emit(new Event(CONNECTION, new DCCConnection(mClient, mThreads)));
 				} catch (IOException ignored) {
 				}
 			}
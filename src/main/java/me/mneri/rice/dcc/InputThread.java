@@ -20,8 +20,9 @@ package me.mneri.rice.dcc;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.util.concurrent.ThreadFactory;
 
-class InputThread extends Thread {
+class InputThread implements Runnable {
 	private Observer mObserver;
 	private BufferedReader mReader;
 
@@ -36,6 +37,10 @@ class InputThread extends Thread {
 		mReader = reader;
 	}
 
+	void start(ThreadFactory factory) {
+		factory.newThread(this).start();
+	}
+
 	@Override
 	public void run() {
 		boolean running = true;
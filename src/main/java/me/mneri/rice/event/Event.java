@@ -19,11 +19,19 @@
 package me.mneri.rice.event;
 
 public class Event {
+	public static final int NO_CODE = -1;
+
 	public Event(String type, Object data) {
+		this(type, NO_CODE, data);
+	}
+
+	public Event(String type, int code, Object data) {
 		this.type = type;
+		this.code = code;
 		this.data = data;
 	}
 
 	public final String type;
+	public final int code;
 	public final Object data;
 }
@@ -19,6 +19,7 @@
 package me.mneri.rice.event;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 
 public class EventEmitter {
@@ -26,13 +27,27 @@ public class EventEmitter {
 
 	private HashMap<String, ArrayList<Callback>> mHandlers = new HashMap<>();
 	private ArrayList<Callback> mCatchAlls = new ArrayList<>();
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private ArrayList<Callback>[] mCodeHandlers = new ArrayList[0];
 
 	public static interface Callback {
 		public abstract void performAction(Event event);
 	}
 
+	// Subclasses can map event types to small integer codes; handlers of coded events are kept in an array so that
+	// dispatching doesn't need to hash the type
+	protected int codeOf(String event) {
+		return Event.NO_CODE;
+	}
+
 	public synchronized void emit(Event event) {
-		ArrayList<Callback> callbacks = mHandlers.get(event.type);
+		int code = (event.code != Event.NO_CODE ? event.code : codeOf(event.type));
+		ArrayList<Callback> callbacks;
+
+		if (code != Event.NO_CODE)
+			callbacks = (code < mCodeHandlers.length ? mCodeHandlers[code] : null);
+		else
+			callbacks = mHandlers.get(event.type);
 
 		if (callbacks != null) {
 			for (Callback callback : callbacks)
@@ -49,7 +64,13 @@ public class EventEmitter {
 			return;
 		}
 
-		ArrayList<Callback> callbacks = mHandlers.get(event);
+		int code = codeOf(event);
+		ArrayList<Callback> callbacks;
+
+		if (code != Event.NO_CODE)
+			callbacks = (code < mCodeHandlers.length ? mCodeHandlers[code] : null);
+		else
+			callbacks = mHandlers.get(event);
 
 		if (callbacks != null)
 			callbacks.remove(callback);
@@ -61,6 +82,19 @@ public class EventEmitter {
 			return;
 		}
 
+		int code = codeOf(event);
+
+		if (code != Event.NO_CODE) {
+			if (code >= mCodeHandlers.length)
+				mCodeHandlers = Arrays.copyOf(mCodeHandlers, code + 1);
+
+			if (mCodeHandlers[code] == null)
+				mCodeHandlers[code] = new ArrayList<>();
+
+			mCodeHandlers[code].add(callback);
+			return;
+		}
+
 		ArrayList<Callback> callbacks = mHandlers.get(event);
 
 		if (callbacks == null) {
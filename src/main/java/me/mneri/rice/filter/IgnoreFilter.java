@@ -19,15 +19,17 @@
 package me.mneri.rice.filter;
 
 import java.util.Collection;
-import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import me.mneri.rice.Message;
+import me.mneri.rice.RawLine;
 
 //TODO: Connection's case mapping should be taken into account
 
-public class IgnoreFilter implements Filter {
-	private HashSet<String> mNicks = new HashSet<>();
+public class IgnoreFilter implements RawFilter {
+	// Lines are filtered on the input thread while nicks are added and removed from anywhere
+	private Set<String> mNicks = ConcurrentHashMap.newKeySet();
 
 	public void add(Collection<String> nicks) {
 		mNicks.addAll(nicks);
@@ -38,12 +40,17 @@ public class IgnoreFilter implements Filter {
 	}
 
 	public boolean contains(String nick) {
-		return mNicks.contains(nick);
+		return nick != null && mNicks.contains(nick);
 	}
 
 	@Override
 	public boolean doFilter(Message message) {
-		return mNicks.contains(message.nick);
+		return contains(message.getNick());
+	}
+
+	@Override
+	public boolean doFilter(RawLine line) {
+		return !mNicks.isEmpty() && line.hasPrefix() && contains(line.getNick());
 	}
 
 	public Set<String> get() {
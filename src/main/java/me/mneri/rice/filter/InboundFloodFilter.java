@@ -1,10 +1,11 @@
 package me.mneri.rice.filter;
 
 import me.mneri.rice.Message;
+import me.mneri.rice.RawLine;
 
 import java.util.HashMap;
 
-public class InboundFloodFilter implements Filter {
+public class InboundFloodFilter implements RawFilter {
 	private static final long TIME_PENALTY_MILLIS = 2000;
 	private static final long PENALTY_WINDOW_MILLIS = 20000;
 
@@ -12,16 +13,24 @@ public class InboundFloodFilter implements Filter {
 
 	@Override
 	public boolean doFilter(Message message) {
+		return doFilter(message.getNick());
+	}
+
+	@Override
+	public boolean doFilter(RawLine line) {
+		return doFilter(line.getNick());
+	}
+
+	private boolean doFilter(String nick) {
 		long currentTime = System.currentTimeMillis();
-		Long messageTimer = mMessageTimers.get(message.nick);
+		Long messageTimer = mMessageTimers.get(nick);
 
 		if (messageTimer == null || messageTimer < currentTime)
 			messageTimer = currentTime;
 
 		messageTimer += TIME_PENALTY_MILLIS;
-		mMessageTimers.put(message.nick, messageTimer);
+		mMessageTimers.put(nick, messageTimer);
 
 		return messageTimer >= currentTime + PENALTY_WINDOW_MILLIS;
-
 	}
 }
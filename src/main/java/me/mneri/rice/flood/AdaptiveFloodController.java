@@ -0,0 +1,285 @@
+/*
+ * This file is part of Rice.
+ * © Copyright Massimo Neri 2014 <hello@mneri.me>
+ *
+ * Rice is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rice is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rice. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package me.mneri.rice.flood;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import me.mneri.rice.Commands;
+import me.mneri.rice.Message;
+
+/**
+ * A flood controller for servers whose limits are unknown. It starts from a conservative rate, in lines per window,
+ * and raises it by a fixed step for every window in which lines had to wait and nothing went wrong. On a sign that
+ * the server is pushing back, it cuts the rate by a factor and pauses for a window. The signs are:
+ * <ul>
+ * <li>an {@code ERROR} mentioning flood or RecvQ, as sent before the server drops the connection;</li>
+ * <li>the numerics servers use to throttle clients or targets (263, 439 and 707);</li>
+ * <li>a round trip time well above the best one seen, as servers that hold back the lines of busy clients cause. It
+ * is measured with PINGs sent every probe interval.</li>
+ * </ul>
+ * The rate is saved per network, as named by ISUPPORT, and picked up again by later connections to the same network.
+ */
+public class AdaptiveFloodController implements FloodController {
+	private static final RateStore DEFAULT_STORE = new MemoryRateStore();
+	// Outstanding pings worth remembering
+	private static final int MAX_PROBES = 16;
+
+	private final AtomicLong mAdjusted;
+	private final AtomicLong mBucket;
+	private final AtomicLong mCut;
+	private final double mDecrease;
+	private final double mIncrease;
+	private volatile boolean mLimited;
+	private final double mMax;
+	private final double mMin;
+	private volatile String mNetwork;
+	private final long mProbeInterval;
+	private final ConcurrentHashMap<String, Long> mProbes = new ConcurrentHashMap<>();
+	private volatile double mRate;
+	private volatile long mRoundTrip = Long.MAX_VALUE;
+	private final RateStore mStore;
+	private final long mWindow;
+
+	public static class Builder {
+		private double mDecrease = 0.5;
+		private double mIncrease = 1;
+		private double mInitial = 5;
+		private double mMax = 50;
+		private double mMin = 1;
+		private long mProbeInterval = 30 * 1000;
+		private RateStore mStore;
+		private long mWindow = 10000;
+
+		public AdaptiveFloodController build() {
+			return new AdaptiveFloodController(this);
+		}
+
+		// Factor the rate is multiplied by when the server pushes back, 0.5 by default
+		public Builder decrease(double factor) {
+			if (factor <= 0 || factor >= 1)
+				throw new IllegalArgumentException("The decrease factor must be between 0 and 1.");
+
+			mDecrease = factor;
+			return this;
+		}
+
+		// Lines per window added after a window without trouble, 1 by default
+		public Builder increase(double lines) {
+			if (lines <= 0)
+				throw new IllegalArgumentException("The increase must be positive.");
+
+			mIncrease = lines;
+			return this;
+		}
+
+		// Lines per window on networks nothing was learned about, 5 by default
+		public Builder initial(double lines) {
+			mInitial = lines;
+			return this;
+		}
+
+		// Bounds of the rate in lines per window, 1 and 50 by default
+		public Builder limits(double min, double max) {
+			if (min <= 0 || max < min)
+				throw new IllegalArgumentException("The limits must be positive and in order.");
+
+			mMin = min;
+			mMax = max;
+			return this;
+		}
+
+		// 0 doesn't ping, and leaves the round trip time out
+		public Builder probeInterval(long interval) {
+			mProbeInterval = interval;
+			return this;
+		}
+
+		// Where rates are kept, a store shared by every controller in the process by default
+		public Builder store(RateStore store) {
+			mStore = store;
+			return this;
+		}
+
+		// Length of the window in milliseconds, 10 seconds by default
+		public Builder window(long window) {
+			if (window < 1)
+				throw new IllegalArgumentException("The window must be positive.");
+
+			mWindow = window;
+			return this;
+		}
+	}
+
+	private AdaptiveFloodController(Builder builder) {
+		long now = System.nanoTime();
+
+		mAdjusted = new AtomicLong(now);
+		mBucket = new AtomicLong(now);
+		mCut = new AtomicLong(now - TimeUnit.MILLISECONDS.toNanos(builder.mWindow));
+		mDecrease = builder.mDecrease;
+		mIncrease = builder.mIncrease;
+		mMax = builder.mMax;
+		mMin = builder.mMin;
+		mProbeInterval = builder.mProbeInterval;
+		mRate = Math.max(mMin, Math.min(mMax, builder.mInitial));
+		mStore = (builder.mStore != null ? builder.mStore : DEFAULT_STORE);
+		mWindow = TimeUnit.MILLISECONDS.toNanos(builder.mWindow);
+	}
+
+	// Raise the rate once per window, if the window was busy enough to make lines wait
+	private void adjust(long now) {
+		long adjusted = mAdjusted.get();
+
+		if (now - adjusted < mWindow || !mAdjusted.compareAndSet(adjusted, now))
+			return;
+
+		if (mLimited) {
+			mLimited = false;
+			setRate(Math.min(mMax, mRate + mIncrease));
+		}
+	}
+
+	private void cut() {
+		long now = System.nanoTime();
+		long last = mCut.get();
+
+		// One cut per window: a burst of warnings is about the same lines
+		if (now - last < mWindow || !mCut.compareAndSet(last, now))
+			return;
+
+		mAdjusted.set(now);
+		mLimited = false;
+		setRate(Math.max(mMin, mRate * mDecrease));
+
+		// Let what the server holds against us drain. The bucket lends a window's worth of lines, so the pause is a window
+		// on top of that.
+		long pause = now + 2 * mWindow;
+		long bucket;
+
+		while ((bucket = mBucket.get()) - pause < 0 && !mBucket.compareAndSet(bucket, pause));
+	}
+
+	@Override
+	public long getDelay(String string) {
+		long now = System.nanoTime();
+		adjust(now);
+
+		if (string.startsWith(Commands.PING + " ")) {
+			String token = string.substring(5).trim();
+
+			if (token.startsWith(":"))
+				token = token.substring(1);
+
+			if (mProbes.size() < MAX_PROBES)
+				mProbes.put(token, now);
+		}
+
+		long when = TokenBucketFloodController.charge(mBucket, (long) (mWindow / mRate), now, mWindow);
+
+		if (when - now > 0)
+			mLimited = true;
+
+		return TimeUnit.NANOSECONDS.toMillis(when - now + 999999);
+	}
+
+	@Override
+	public long getProbeInterval() {
+		return mProbeInterval;
+	}
+
+	// The current rate, in lines per window
+	public double getRate() {
+		return mRate;
+	}
+
+	@Override
+	public void onReceive(Message message) {
+		String command = message.getCommand();
+
+		switch (command) {
+			case Commands.ERROR:
+				String reason = message.getParam(0);
+
+				if (reason != null) {
+					reason = reason.toLowerCase(Locale.ROOT);
+
+					if (reason.contains("flood") || reason.contains("recvq"))
+						cut();
+				}
+
+				break;
+			case Commands.PONG:
+				int count = message.getParams().size();
+				Long sent = (count > 0 ? mProbes.remove(message.getParam(count - 1)) : null);
+
+				if (sent != null)
+					onRoundTrip(System.nanoTime() - sent);
+
+				break;
+			case Commands.RPL_ISUPPORT:
+				for (String param : message.getParams()) {
+					if (param.startsWith("NETWORK="))
+						setNetwork(param.substring(8));
+				}
+
+				break;
+			case Commands.RPL_TRYAGAIN:
+			case "439": // ERR_TARGETTOOFAST
+			case "707": // ERR_TARGCHANGE
+				cut();
+				break;
+		}
+	}
+
+	private void onRoundTrip(long roundTrip) {
+		long best = mRoundTrip;
+
+		if (roundTrip < best) {
+			mRoundTrip = roundTrip;
+			return;
+		}
+
+		// Well above the network's own latency: the server is sitting on our lines
+		if (roundTrip > 2 * best + TimeUnit.MILLISECONDS.toNanos(500))
+			cut();
+	}
+
+	private void setNetwork(String network) {
+		if (network.equals(mNetwork))
+			return;
+
+		mNetwork = network;
+		mRoundTrip = Long.MAX_VALUE;
+		double rate = mStore.load(network);
+
+		if (rate > 0)
+			mRate = Math.max(mMin, Math.min(mMax, rate));
+	}
+
+	private void setRate(double rate) {
+		mRate = rate;
+		String network = mNetwork;
+
+		if (network != null)
+			mStore.save(network, rate);
+	}
+}
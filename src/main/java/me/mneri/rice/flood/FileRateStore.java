@@ -0,0 +1,79 @@
+/*
+ * This file is part of Rice.
+ * © Copyright Massimo Neri 2014 <hello@mneri.me>
+ *
+ * Rice is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rice is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rice. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package me.mneri.rice.flood;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * Rates saved to a properties file, one network per key. The file is read once and rewritten as a whole on every
+ * change; a file that can't be read or written only costs what was learned.
+ */
+public class FileRateStore implements RateStore {
+	private final Path mPath;
+	private Properties mRates;
+
+	public FileRateStore(Path path) {
+		mPath = path;
+	}
+
+	@Override
+	public synchronized double load(String network) {
+		String rate = rates().getProperty(network);
+
+		try {
+			return (rate != null ? Double.parseDouble(rate) : -1);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private Properties rates() {
+		if (mRates == null) {
+			mRates = new Properties();
+
+			try (InputStream in = Files.newInputStream(mPath)) {
+				mRates.load(in);
+			} catch (IOException ignored) { }
+		}
+
+		return mRates;
+	}
+
+	@Override
+	public synchronized void save(String network, double rate) {
+		rates().setProperty(network, Double.toString(rate));
+
+		try {
+			// Replace the file in one step, so that a crash doesn't leave half of it
+			Path temp = mPath.resolveSibling(mPath.getFileName() + ".tmp");
+
+			try (OutputStream out = Files.newOutputStream(temp)) {
+				mRates.store(out, null);
+			}
+
+			Files.move(temp, mPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException ignored) { }
+	}
+}
@@ -18,6 +18,22 @@
 
 package me.mneri.rice.flood;
 
+import me.mneri.rice.Message;
+
 public interface FloodController {
 	public long getDelay(String string);
+
+	// The same, knowing the size in bytes of the line as it's sent, for controllers that charge by size
+	public default long getDelay(String string, int bytes) {
+		return getDelay(string);
+	}
+
+	// How often, in milliseconds, a registered connection should ping the server, for controllers that watch the round
+	// trip time; 0 never pings
+	public default long getProbeInterval() {
+		return 0;
+	}
+
+	// Every message received from the server, before the filters
+	public default void onReceive(Message message) { }
 }
@@ -0,0 +1,37 @@
+/*
+ * This file is part of Rice.
+ * © Copyright Massimo Neri 2014 <hello@mneri.me>
+ *
+ * Rice is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rice is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rice. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package me.mneri.rice.flood;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+// Rates that last as long as the process
+public class MemoryRateStore implements RateStore {
+	private final ConcurrentHashMap<String, Double> mRates = new ConcurrentHashMap<>();
+
+	@Override
+	public double load(String network) {
+		Double rate = mRates.get(network);
+		return (rate != null ? rate : -1);
+	}
+
+	@Override
+	public void save(String network, double rate) {
+		mRates.put(network, rate);
+	}
+}
@@ -0,0 +1,30 @@
+/*
+ * This file is part of Rice.
+ * © Copyright Massimo Neri 2014 <hello@mneri.me>
+ *
+ * Rice is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rice is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rice. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package me.mneri.rice.flood;
+
+/**
+ * Where an {@link AdaptiveFloodController} keeps the rate it learned for every network, so that the next connection
+ * to the same network starts from it.
+ */
+public interface RateStore {
+	// The rate saved for the network, in lines per window, or a negative number if there is none
+	public double load(String network);
+
+	public void save(String network, double rate);
+}
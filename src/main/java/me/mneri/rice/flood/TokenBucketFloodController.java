@@ -0,0 +1,212 @@
+/*
+ * This file is part of Rice.
+ * © Copyright Massimo Neri 2014 <hello@mneri.me>
+ *
+ * Rice is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rice is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rice. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package me.mneri.rice.flood;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A flood controller that charges every line by its size and command, the way servers compute their penalties. A
+ * window allows a number of lines and a number of bytes: each line costs a share of the window for being a line and a
+ * share for each of its bytes as sent, and lines are delayed once the cost of what was sent exceeds one window. Commands
+ * can be made to count as more than one line, and lines to a single target (PRIVMSG and NOTICE) can be limited again
+ * with a bucket of their own.
+ *
+ * The buckets are timestamps updated with compare-and-set, so lines can be charged from any thread without locking.
+ */
+public class TokenBucketFloodController implements FloodController {
+	// Target buckets are dropped once there are this many and they are idle
+	private static final int MAX_TARGETS = 1024;
+
+	private final long mByteCost;
+	private final AtomicLong mGlobal;
+	private final long mLineCost;
+	private final long mTargetLineCost;
+	private final ConcurrentHashMap<String, AtomicLong> mTargets = new ConcurrentHashMap<>();
+	private final long mTargetWindow;
+	private final HashMap<String, Integer> mWeights;
+	private final long mWindow;
+
+	public static class Builder {
+		private int mBytes;
+		private int mLines = 5;
+		private int mTargetLines;
+		private long mTargetWindow;
+		private HashMap<String, Integer> mWeights = new HashMap<>();
+		private long mWindow = 10000;
+
+		public TokenBucketFloodController build() {
+			return new TokenBucketFloodController(this);
+		}
+
+		// Bytes allowed per window; 0, the default, doesn't charge for size
+		public Builder bytes(int bytes) {
+			if (bytes < 0)
+				throw new IllegalArgumentException("The bytes per window can't be negative.");
+
+			mBytes = bytes;
+			return this;
+		}
+
+		// Lines allowed per window, 5 by default; 0 doesn't charge for lines
+		public Builder lines(int lines) {
+			if (lines < 0)
+				throw new IllegalArgumentException("The lines per window can't be negative.");
+
+			mLines = lines;
+			return this;
+		}
+
+		// Also limit the messages and notices sent to any one target
+		public Builder perTarget(int lines, long window) {
+			if (lines < 1 || window < 1)
+				throw new IllegalArgumentException("The target limit must be positive.");
+
+			mTargetLines = lines;
+			mTargetWindow = window;
+			return this;
+		}
+
+		// Make a command count as this many lines
+		public Builder weight(String command, int lines) {
+			if (lines < 0)
+				throw new IllegalArgumentException("The weight can't be negative.");
+
+			mWeights.put(command.toUpperCase(Locale.ROOT), lines);
+			return this;
+		}
+
+		// Length of the window in milliseconds, 10 seconds by default
+		public Builder window(long window) {
+			if (window < 1)
+				throw new IllegalArgumentException("The window must be positive.");
+
+			mWindow = window;
+			return this;
+		}
+	}
+
+	private TokenBucketFloodController(Builder builder) {
+		long window = TimeUnit.MILLISECONDS.toNanos(builder.mWindow);
+		long now = System.nanoTime();
+
+		mByteCost = (builder.mBytes > 0 ? window / builder.mBytes : 0);
+		mGlobal = new AtomicLong(now);
+		mLineCost = (builder.mLines > 0 ? window / builder.mLines : 0);
+		mTargetLineCost = (builder.mTargetLines > 0 ? TimeUnit.MILLISECONDS.toNanos(builder.mTargetWindow)
+				/ builder.mTargetLines : 0);
+		mTargetWindow = TimeUnit.MILLISECONDS.toNanos(builder.mTargetWindow);
+		mWeights = new HashMap<>(builder.mWeights);
+		mWindow = window;
+	}
+
+	// Add cost to the bucket for a line that can't leave before notBefore; returns when it can leave
+	static long charge(AtomicLong bucket, long cost, long notBefore, long window) {
+		for (;;) {
+			long current = bucket.get();
+			long next = (current - notBefore > 0 ? current : notBefore) + cost;
+
+			if (bucket.compareAndSet(current, next))
+				return (next - window - notBefore > 0 ? next - window : notBefore);
+		}
+	}
+
+	// Without the encoded size, charge for the line in UTF-8
+	@Override
+	public long getDelay(String string) {
+		return getDelay(string, utf8Length(string));
+	}
+
+	@Override
+	public long getDelay(String string, int bytes) {
+		long now = System.nanoTime();
+		int length = string.length();
+		int start = 0;
+
+		// Skip the tags, then the command is the first word and the target the second
+		if (length > 0 && string.charAt(0) == '@')
+			start = next(string, start);
+
+		int end = string.indexOf(' ', start);
+		String command = string.substring(start, (end >= 0 ? end : length)).trim().toUpperCase(Locale.ROOT);
+		Integer weight = mWeights.get(command);
+		long when = now;
+
+		if (mTargetLineCost > 0 && end >= 0 && (command.equals("PRIVMSG") || command.equals("NOTICE"))) {
+			int targetEnd = string.indexOf(' ', end + 1);
+			String target = string.substring(end + 1, (targetEnd >= 0 ? targetEnd : length)).trim();
+			when = charge(target(target.toLowerCase(Locale.ROOT), now), mTargetLineCost, now, mTargetWindow);
+		}
+
+		long cost = mLineCost * (weight != null ? weight : 1) + mByteCost * bytes;
+		when = charge(mGlobal, cost, when, mWindow);
+
+		return TimeUnit.NANOSECONDS.toMillis(when - now + 999999);
+	}
+
+	private static int next(String string, int start) {
+		int end = string.indexOf(' ', start);
+		return (end >= 0 ? end + 1 : string.length());
+	}
+
+	private AtomicLong target(String target, long now) {
+		AtomicLong bucket = mTargets.get(target);
+
+		if (bucket != null)
+			return bucket;
+
+		// Buckets that have been refilled are as good as new ones
+		if (mTargets.size() >= MAX_TARGETS) {
+			Iterator<Map.Entry<String, AtomicLong>> entries = mTargets.entrySet().iterator();
+
+			while (entries.hasNext()) {
+				if (entries.next().getValue().get() - now <= 0)
+					entries.remove();
+			}
+		}
+
+		return mTargets.computeIfAbsent(target, key -> new AtomicLong(now));
+	}
+
+	static int utf8Length(String string) {
+		int length = string.length();
+		int bytes = length;
+
+		for (int i = 0; i < length; i++) {
+			char c = string.charAt(i);
+
+			if (c >= 0x800) {
+				bytes += 2;
+
+				// A surrogate pair is four bytes for two chars
+				if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(string.charAt(i + 1)))
+					i++;
+			} else if (c >= 0x80) {
+				bytes++;
+			}
+		}
+
+		return bytes;
+	}
+}
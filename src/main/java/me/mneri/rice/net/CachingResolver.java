@@ -0,0 +1,81 @@
+/*
+ * This file is part of Rice.
+ * © Copyright Massimo Neri 2014 <hello@mneri.me>
+ *
+ * Rice is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rice is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rice. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package me.mneri.rice.net;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A resolver that remembers the answers of another one for a while. When a lookup fails, an expired answer is used
+ * rather than failing, so that reconnects survive a name server going away.
+ */
+public class CachingResolver implements Resolver {
+	public static final long DEFAULT_TTL = 60 * 1000;
+
+	private final ConcurrentHashMap<String, Entry> mCache = new ConcurrentHashMap<>();
+	private final Resolver mDelegate;
+	private final long mTtl;
+
+	private static class Entry {
+		final InetAddress[] addresses;
+		final long expires;
+
+		Entry(InetAddress[] addresses, long expires) {
+			this.addresses = addresses;
+			this.expires = expires;
+		}
+	}
+
+	public CachingResolver(Resolver delegate) {
+		this(delegate, DEFAULT_TTL);
+	}
+
+	public CachingResolver(Resolver delegate, long ttl) {
+		mDelegate = delegate;
+		mTtl = ttl;
+	}
+
+	public void clear() {
+		mCache.clear();
+	}
+
+	@Override
+	public InetAddress[] resolve(String host) throws UnknownHostException {
+		Entry entry = mCache.get(host);
+		long now = System.nanoTime();
+
+		if (entry != null && entry.expires - now > 0)
+			return entry.addresses.clone();
+
+		InetAddress[] addresses;
+
+		try {
+			addresses = mDelegate.resolve(host);
+		} catch (UnknownHostException e) {
+			if (entry != null)
+				return entry.addresses.clone();
+
+			throw e;
+		}
+
+		mCache.put(host, new Entry(addresses.clone(), now + mTtl * 1000000));
+		return addresses;
+	}
+}
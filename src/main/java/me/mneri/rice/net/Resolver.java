@@ -0,0 +1,32 @@
+/*
+ * This file is part of Rice.
+ * © Copyright Massimo Neri 2014 <hello@mneri.me>
+ *
+ * Rice is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rice is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rice. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package me.mneri.rice.net;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Turns host names into addresses for connections. Implementations may block, they are never called from an event
+ * loop.
+ */
+public interface Resolver {
+	public static final Resolver SYSTEM = InetAddress::getAllByName;
+
+	public InetAddress[] resolve(String host) throws UnknownHostException;
+}
@@ -0,0 +1,152 @@
+/*
+ * This file is part of Rice.
+ * © Copyright Massimo Neri 2014 <hello@mneri.me>
+ *
+ * Rice is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rice is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rice. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package me.mneri.rice.text;
+
+public class DateUtils {
+	private static final int[] DAYS_IN_MONTH = { 31, 29, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31 };
+
+	private DateUtils() { }
+
+	// Days since 1970-01-01 of a proleptic Gregorian date (H. Hinnant's days_from_civil)
+	private static long daysFromCivil(int year, int month, int day) {
+		if (month <= 2)
+			year--;
+
+		int era = (year >= 0 ? year : year - 399) / 400;
+		int yearOfEra = year - era * 400;
+		int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+		int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+
+		return era * 146097L + dayOfEra - 719468;
+	}
+
+	private static int digits(byte[] buffer, int offset, int count) {
+		int value = 0;
+
+		for (int i = offset; i < offset + count; i++) {
+			int digit = buffer[i] - '0';
+
+			if (digit < 0 || digit > 9)
+				return -1;
+
+			value = value * 10 + digit;
+		}
+
+		return value;
+	}
+
+	private static boolean isLeapYear(int year) {
+		return (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+	}
+
+	/**
+	 * Parse an ISO 8601 timestamp of the form {@code YYYY-MM-DDThh:mm:ss[.sss][Z|±hh[:mm]]}, as found in the IRCv3
+	 * {@code time} tag, into milliseconds since the epoch. Timestamps without an offset are taken as UTC. Doesn't
+	 * allocate and is safe to call from any thread.
+	 *
+	 * @return The timestamp, or {@code defaultValue} if the text is not a valid timestamp.
+	 */
+	public static long parseIso8601(byte[] buffer, int offset, int length, long defaultValue) {
+		int limit = offset + length;
+		int i = offset;
+
+		if (length < 19 || buffer[i + 4] != '-' || buffer[i + 7] != '-' || (buffer[i + 10] != 'T'
+				&& buffer[i + 10] != 't' && buffer[i + 10] != ' ') || buffer[i + 13] != ':' || buffer[i + 16] != ':')
+			return defaultValue;
+
+		int year = digits(buffer, i, 4);
+		int month = digits(buffer, i + 5, 2);
+		int day = digits(buffer, i + 8, 2);
+		int hour = digits(buffer, i + 11, 2);
+		int minute = digits(buffer, i + 14, 2);
+		int second = digits(buffer, i + 17, 2);
+
+		if (year < 0 || month < 1 || month > 12 || day < 1 || day > DAYS_IN_MONTH[month - 1]
+				|| (month == 2 && day == 29 && !isLeapYear(year)) || hour < 0 || hour > 23 || minute < 0
+				|| minute > 59 || second < 0 || second > 60)
+			return defaultValue;
+
+		i += 19;
+		int millis = 0;
+
+		// Any number of fraction digits, only the first three matter
+		if (i < limit && (buffer[i] == '.' || buffer[i] == ',')) {
+			int scale = 100;
+			int start = ++i;
+
+			while (i < limit && buffer[i] >= '0' && buffer[i] <= '9') {
+				millis += (buffer[i] - '0') * scale;
+				scale /= 10;
+				i++;
+			}
+
+			if (i == start)
+				return defaultValue;
+		}
+
+		int offsetMinutes = 0;
+
+		if (i < limit) {
+			byte sign = buffer[i++];
+
+			if (sign == 'Z' || sign == 'z') {
+				if (i != limit)
+					return defaultValue;
+			} else if (sign == '+' || sign == '-') {
+				int hours = (limit - i >= 2 ? digits(buffer, i, 2) : -1);
+				int minutes = 0;
+				i += 2;
+
+				if (i < limit && buffer[i] == ':')
+					i++;
+
+				if (i < limit) {
+					minutes = (limit - i == 2 ? digits(buffer, i, 2) : -1);
+					i += 2;
+				}
+
+				if (hours < 0 || hours > 23 || minutes < 0 || minutes > 59 || i != limit)
+					return defaultValue;
+
+				offsetMinutes = (hours * 60 + minutes) * (sign == '-' ? -1 : 1);
+			} else {
+				return defaultValue;
+			}
+		}
+
+		long seconds = daysFromCivil(year, month, day) * 86400L + hour * 3600 + (minute - offsetMinutes) * 60 + second;
+		return seconds * 1000 + millis;
+	}
+
+	public static long parseIso8601(CharSequence text, long defaultValue) {
+		int length = text.length();
+		byte[] buffer = new byte[length];
+
+		for (int i = 0; i < length; i++) {
+			char c = text.charAt(i);
+
+			if (c > 127)
+				return defaultValue;
+
+			buffer[i] = (byte) c;
+		}
+
+		return parseIso8601(buffer, 0, length, defaultValue);
+	}
+}
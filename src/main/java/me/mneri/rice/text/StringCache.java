@@ -0,0 +1,155 @@
+/*
+ * This file is part of Rice.
+ * © Copyright Massimo Neri 2014 <hello@mneri.me>
+ *
+ * Rice is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rice is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rice. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package me.mneri.rice.text;
+
+import java.nio.charset.Charset;
+
+/**
+ * A bounded cache that turns byte slices into strings, returning the same instance for the same bytes. It is set
+ * associative: a slice can only live in one small set of slots, and a full set evicts according to the chosen policy.
+ * Lookups are lock-free; concurrent inserts may lose an entry, which only costs a later miss.
+ */
+public class StringCache {
+	public static final int DEFAULT_CAPACITY = 4096;
+	public static final StringCache DEFAULT = new StringCache(DEFAULT_CAPACITY, Eviction.LEAST_RECENTLY_USED);
+
+	private static final int WAYS = 4;
+
+	// Advanced on misses only, and racy on purpose: recency only needs to be roughly right. A hit stamps its entry with
+	// the clock only if a miss happened since the entry was last used, so hot entries are read but not written.
+	private long mClock;
+	private final Entry[] mEntries;
+	private final Eviction mEviction;
+	private final int mMask;
+	// Next slot to replace in every set, for FIRST_IN_FIRST_OUT
+	private final int[] mNext;
+
+	public enum Eviction {
+		FIRST_IN_FIRST_OUT, LEAST_RECENTLY_USED
+	}
+
+	private static class Entry {
+		final byte[] bytes;
+		final Charset charset;
+		final int hash;
+		final String value;
+		long used;
+
+		Entry(byte[] bytes, Charset charset, int hash, String value) {
+			this.bytes = bytes;
+			this.charset = charset;
+			this.hash = hash;
+			this.value = value;
+		}
+
+		boolean matches(byte[] buffer, int offset, int length, Charset charset, int hash) {
+			if (this.hash != hash || bytes.length != length || !this.charset.equals(charset))
+				return false;
+
+			for (int i = 0; i < length; i++) {
+				if (bytes[i] != buffer[offset + i])
+					return false;
+			}
+
+			return true;
+		}
+	}
+
+	public StringCache(int capacity, Eviction eviction) {
+		if (capacity < WAYS)
+			throw new IllegalArgumentException("Capacity must be at least " + WAYS);
+
+		int sets = Integer.highestOneBit(capacity / WAYS);
+		mEntries = new Entry[sets * WAYS];
+		mEviction = eviction;
+		mMask = sets - 1;
+		mNext = new int[sets];
+	}
+
+	public int capacity() {
+		return mEntries.length;
+	}
+
+	public void clear() {
+		for (int i = 0; i < mEntries.length; i++)
+			mEntries[i] = null;
+	}
+
+	public String get(byte[] buffer, int offset, int length, Charset charset) {
+		int hash = 0;
+
+		for (int i = offset; i < offset + length; i++)
+			hash = 31 * hash + buffer[i];
+
+		// Spread the bits so that similar nicks don't crowd the same set
+		int set = ((hash ^ (hash >>> 16)) & mMask) * WAYS;
+		Entry[] entries = mEntries;
+
+		for (int i = set; i < set + WAYS; i++) {
+			Entry entry = entries[i];
+
+			if (entry != null && entry.matches(buffer, offset, length, charset, hash)) {
+				if (mEviction == Eviction.LEAST_RECENTLY_USED) {
+					long clock = mClock;
+
+					if (entry.used != clock)
+						entry.used = clock;
+				}
+
+				return entry.value;
+			}
+		}
+
+		byte[] bytes = new byte[length];
+		System.arraycopy(buffer, offset, bytes, 0, length);
+		Entry entry = new Entry(bytes, charset, hash, new String(bytes, charset));
+		entry.used = ++mClock;
+		entries[victim(set)] = entry;
+
+		return entry.value;
+	}
+
+	private int victim(int set) {
+		Entry[] entries = mEntries;
+
+		if (mEviction == Eviction.FIRST_IN_FIRST_OUT) {
+			int index = set / WAYS;
+			int way = mNext[index];
+			mNext[index] = (way + 1) % WAYS;
+			return set + way;
+		}
+
+		int victim = set;
+		long oldest = Long.MAX_VALUE;
+
+		for (int i = set; i < set + WAYS; i++) {
+			Entry entry = entries[i];
+
+			if (entry == null)
+				return i;
+
+			if (entry.used < oldest) {
+				oldest = entry.used;
+				victim = i;
+			}
+		}
+
+		return victim;
+	}
+}
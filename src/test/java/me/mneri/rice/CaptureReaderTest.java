@@ -0,0 +1,121 @@
+/*
+ * This file is part of Rice.
+ * © Copyright Massimo Neri 2014 <hello@mneri.me>
+ *
+ * Rice is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rice is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rice. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package me.mneri.rice;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.Test;
+
+public class CaptureReaderTest {
+	private static final int LINE_LENGTH = 1000;
+	private static final int WINDOW = 64 * 1024 * 1024;
+
+	// A record for every line length, then the bytes of a record header cut short
+	private static Path write(int[] lengths, int tail) throws IOException {
+		Path file = Files.createTempFile("capture", ".rcap");
+		ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024);
+		buffer.putInt(Capture.MAGIC).putInt(Capture.VERSION);
+
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+			for (int i = 0; i < lengths.length; i++) {
+				if (buffer.remaining() < Capture.RECORD_HEADER_SIZE + lengths[i])
+					flush(channel, buffer);
+
+				buffer.putInt(lengths[i]).put((byte) 0).putLong(i);
+
+				for (int j = 0; j < lengths[i]; j++)
+					buffer.put((byte) 'a');
+			}
+
+			for (int i = 0; i < tail; i++)
+				buffer.put((byte) 0);
+
+			flush(channel, buffer);
+		}
+
+		return file;
+	}
+
+	private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+
+		buffer.clear();
+	}
+
+	private static int[] lengths(int records) {
+		int[] lengths = new int[records];
+
+		for (int i = 0; i < records; i++)
+			lengths[i] = LINE_LENGTH;
+
+		return lengths;
+	}
+
+	private static void readAll(int[] lengths, int tail) throws IOException {
+		Path file = write(lengths, tail);
+
+		try (CaptureReader reader = new CaptureReader(file)) {
+			for (int i = 0; i < lengths.length; i++) {
+				assertTrue(reader.next());
+				assertEquals(i, reader.getTimestamp());
+				assertEquals(lengths[i], reader.getLine().length);
+			}
+
+			assertFalse(reader.next());
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void readsSmallCapture() throws IOException {
+		readAll(lengths(10), 0);
+	}
+
+	@Test
+	public void stopsAtTruncatedHeader() throws IOException {
+		readAll(lengths(10), Capture.RECORD_HEADER_SIZE - 1);
+	}
+
+	@Test
+	public void stopsAtTruncatedHeaderAcrossWindow() throws IOException {
+		int records = (WINDOW - Capture.HEADER_SIZE) / (Capture.RECORD_HEADER_SIZE + LINE_LENGTH);
+		int[] lengths = lengths(records);
+		int used = Capture.HEADER_SIZE + (records - 1) * (Capture.RECORD_HEADER_SIZE + LINE_LENGTH);
+
+		// Stretch the last record so that the cut header starts just before the end of the first mapping
+		lengths[records - 1] = WINDOW - 1 - used - Capture.RECORD_HEADER_SIZE;
+
+		for (int tail = 2; tail < Capture.RECORD_HEADER_SIZE; tail *= 2)
+			readAll(lengths, tail);
+	}
+}
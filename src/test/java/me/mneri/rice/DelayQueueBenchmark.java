@@ -0,0 +1,77 @@
+/*
+ * This file is part of Rice.
+ * © Copyright Massimo Neri 2014 <hello@mneri.me>
+ *
+ * Rice is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rice is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rice. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package me.mneri.rice;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+// Compares DelayQueue with the LinkedList queue it replaced: enqueueing n lines with random or increasing delays, as a
+// flood controller does, then draining them. Not a test; run it with the test classpath:
+// java -cp <classes> me.mneri.rice.DelayQueueBenchmark
+public class DelayQueueBenchmark {
+	// The old queue is about cubic in the number of elements, beyond this it takes minutes
+	private static final int OLD_LIMIT = 4000;
+	private static final int ROUNDS = 3;
+
+	private static double heap(int n, boolean increasing, Random random) {
+		DelayQueue<Integer> queue = new DelayQueue<>();
+		ArrayList<Integer> out = new ArrayList<>(n);
+		long start = System.nanoTime();
+
+		for (int i = 0; i < n; i++)
+			queue.enqueue(i, start - 1000000000L + (increasing ? i * 2 : random.nextInt(60000)) * 1000L);
+
+		queue.drainDue(out, n);
+		return (System.nanoTime() - start) / 1e6;
+	}
+
+	private static double linkedList(int n, boolean increasing, Random random) {
+		LinkedListDelayQueue<Integer> queue = new LinkedListDelayQueue<>();
+		ArrayList<Integer> out = new ArrayList<>(n);
+		long start = System.nanoTime();
+		long now = System.currentTimeMillis() - 1000;
+
+		for (int i = 0; i < n; i++)
+			queue.enqueue(i, now - 60000 + (increasing ? i * 2 : random.nextInt(60000)));
+
+		queue.drainDue(out, n);
+		return (System.nanoTime() - start) / 1e6;
+	}
+
+	public static void main(String[] args) {
+		Random random = new Random(1);
+
+		for (int n : new int[] { 1000, 2000, 4000, 10000, 100000 }) {
+			for (boolean increasing : new boolean[] { false, true }) {
+				double heap = Double.MAX_VALUE;
+				double linkedList = Double.MAX_VALUE;
+
+				for (int i = 0; i < ROUNDS; i++) {
+					heap = Math.min(heap, heap(n, increasing, random));
+
+					if (n <= OLD_LIMIT)
+						linkedList = Math.min(linkedList, linkedList(n, increasing, random));
+				}
+
+				System.out.printf("n=%-6d %-10s heap %9.2f ms   linked list %s%n", n, (increasing ? "increasing" : "random"),
+						heap, (n <= OLD_LIMIT ? String.format("%9.2f ms", linkedList) : "skipped"));
+			}
+		}
+	}
+}
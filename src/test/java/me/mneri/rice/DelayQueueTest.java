@@ -0,0 +1,129 @@
+/*
+ * This file is part of Rice.
+ * © Copyright Massimo Neri 2014 <hello@mneri.me>
+ *
+ * Rice is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rice is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rice. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package me.mneri.rice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class DelayQueueTest {
+	// Every element is already due, so the order only depends on the times and on the order of insertion
+	@Test
+	public void ordersLikeLinkedListQueue() {
+		Random random = new Random(21);
+		DelayQueue<Integer> heap = new DelayQueue<>();
+		LinkedListDelayQueue<Integer> linkedList = new LinkedListDelayQueue<>();
+		long nanos = System.nanoTime() - 10000000000L;
+		long millis = System.currentTimeMillis() - 10000;
+
+		for (int i = 0; i < 2000; i++) {
+			int when = random.nextInt(100);
+			heap.enqueue(i, nanos + when * 1000000L);
+			linkedList.enqueue(i, millis + when);
+		}
+
+		List<Integer> expected = new ArrayList<>();
+		List<Integer> actual = new ArrayList<>();
+		linkedList.drainDue(expected, Integer.MAX_VALUE);
+		heap.drainDue(actual, Integer.MAX_VALUE);
+
+		assertEquals(expected, actual);
+		assertEquals(0, heap.size());
+	}
+
+	@Test
+	public void urgentComesFirst() throws InterruptedException {
+		DelayQueue<String> queue = new DelayQueue<>();
+		queue.enqueue("a");
+		queue.enqueue("b");
+		queue.enqueueUrgent("x");
+		queue.enqueueUrgent("y");
+
+		assertEquals("x", queue.dequeue());
+		assertEquals("y", queue.dequeue());
+		assertEquals("a", queue.dequeue());
+		assertEquals("b", queue.dequeue());
+	}
+
+	@Test
+	public void waitsForDelay() throws InterruptedException {
+		DelayQueue<String> queue = new DelayQueue<>();
+		long start = System.nanoTime();
+		queue.enqueueDelayed("late", 100);
+		queue.enqueueDelayed("soon", 20);
+		List<String> due = new ArrayList<>();
+
+		assertEquals(0, queue.drainDue(due, 10));
+		assertEquals("soon", queue.dequeue());
+		assertEquals("late", queue.dequeue());
+		assertTrue(System.nanoTime() - start >= 100000000L);
+	}
+
+	@Test
+	public void cancels() {
+		Random random = new Random(5);
+		DelayQueue<Integer> queue = new DelayQueue<>();
+		List<DelayQueue.Node<Integer>> nodes = new ArrayList<>();
+		long base = System.nanoTime() - 10000000000L;
+
+		for (int i = 0; i < 1000; i++)
+			nodes.add(queue.enqueue(i, base + random.nextInt(50)));
+
+		List<Integer> expected = new ArrayList<>();
+
+		for (int i = 0; i < nodes.size(); i++) {
+			if (i % 3 == 0)
+				assertTrue(nodes.get(i).cancel());
+			else
+				expected.add(i);
+		}
+
+		assertFalse(nodes.get(0).cancel());
+
+		List<Integer> actual = new ArrayList<>();
+		queue.drainDue(actual, Integer.MAX_VALUE);
+		actual.sort(null);
+
+		assertEquals(expected, actual);
+		assertFalse(nodes.get(1).cancel());
+	}
+
+	@Test
+	public void removesIf() {
+		DelayQueue<Integer> queue = new DelayQueue<>();
+		long base = System.nanoTime() - 10000000000L;
+
+		for (int i = 0; i < 10; i++)
+			queue.enqueue(i, base + (10 - i));
+
+		assertEquals(5, queue.removeIf(i -> i % 2 == 0));
+
+		List<Integer> actual = new ArrayList<>();
+		queue.drainDue(actual, Integer.MAX_VALUE);
+
+		assertEquals(Arrays.asList(9, 7, 5, 3, 1), actual);
+	}
+}
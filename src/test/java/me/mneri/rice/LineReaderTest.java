@@ -0,0 +1,149 @@
+/*
+ * This file is part of Rice.
+ * © Copyright Massimo Neri 2014 <hello@mneri.me>
+ *
+ * Rice is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rice is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rice. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package me.mneri.rice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LineReaderTest {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	// Feed the bytes in chunks of the given sizes, the last one repeated, and collect the lines
+	private static List<String> feed(LineReader reader, byte[] bytes, int... chunks) throws IOException {
+		List<String> lines = new ArrayList<>();
+		int offset = 0;
+		int chunk = 0;
+
+		while (offset < bytes.length) {
+			int count = Math.min(Math.min(chunks[chunk], reader.remaining()), bytes.length - offset);
+			System.arraycopy(bytes, offset, reader.buffer(), reader.position(), count);
+			offset += count;
+			chunk = Math.min(chunk + 1, chunks.length - 1);
+			LineBatch batch = reader.advance(count);
+
+			if (batch != null) {
+				for (int i = 0; i < batch.size(); i++)
+					lines.add(new String(batch.buffer(), batch.start(i), batch.end(i) - batch.start(i), UTF_8));
+			}
+		}
+
+		return lines;
+	}
+
+	private static List<String> feed(LineReader reader, String text, int... chunks) throws IOException {
+		return feed(reader, text.getBytes(UTF_8), chunks);
+	}
+
+	private static String repeat(char c, int count) {
+		char[] chars = new char[count];
+		Arrays.fill(chars, c);
+		return new String(chars);
+	}
+
+	@Test
+	public void splitsLines() throws IOException {
+		LineReader reader = new LineReader(16, 100, OverflowPolicy.TRUNCATE);
+
+		assertEquals(Arrays.asList("PING :a", "b", "PING :c"), feed(reader, "PING :a\r\nb\n\r\n\nPING :c\r\n", 5));
+	}
+
+	@Test
+	public void keepsLinesOfMaxLength() throws IOException {
+		String line = repeat('a', 50);
+
+		assertEquals(Arrays.asList(line, line), feed(new LineReader(8, 50, OverflowPolicy.DISCONNECT),
+				line + "\r\n" + line + "\n", 7));
+		assertEquals(Arrays.asList(line, line), feed(new LineReader(4096, 50, OverflowPolicy.DISCONNECT),
+				line + "\r\n" + line + "\n", 4096));
+	}
+
+	@Test
+	public void truncatesLongLines() throws IOException {
+		String line = repeat('a', 50);
+
+		// Terminated by LF or CRLF, arriving whole or byte by byte
+		for (int chunk : new int[] { 1, 3, 4096 }) {
+			for (String eol : new String[] { "\n", "\r\n" }) {
+				for (int extra : new int[] { 1, 2, 100 }) {
+					LineReader reader = new LineReader(4096, 50, OverflowPolicy.TRUNCATE);
+					String text = line + repeat('b', extra) + eol + "next" + eol;
+
+					assertEquals(chunk + " " + extra, Arrays.asList(line, "next"), feed(reader, text, chunk));
+				}
+			}
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void disconnectsOnLongCompleteLine() throws IOException {
+		feed(new LineReader(4096, 50, OverflowPolicy.DISCONNECT), repeat('a', 51) + "\n", 4096);
+	}
+
+	@Test(expected = IOException.class)
+	public void disconnectsOnLongPartialLine() throws IOException {
+		feed(new LineReader(8, 50, OverflowPolicy.DISCONNECT), repeat('a', 52), 8);
+	}
+
+	@Test
+	public void readsDontDependOnMaxLength() throws IOException {
+		LineReader reader = new LineReader(4096, 50, OverflowPolicy.TRUNCATE);
+		assertEquals(4096, reader.remaining());
+
+		// A small buffer grows just enough to tell a long partial line apart
+		reader = new LineReader(8, 50, OverflowPolicy.TRUNCATE);
+		feed(reader, repeat('a', 40), 8);
+		assertTrue(reader.buffer().length <= 52);
+	}
+
+	@Test
+	public void matchesReferenceOnRandomInput() throws IOException {
+		Random random = new Random(18);
+
+		for (int round = 0; round < 500; round++) {
+			int maxLength = 1 + random.nextInt(40);
+			StringBuilder text = new StringBuilder();
+			List<String> expected = new ArrayList<>();
+
+			for (int i = random.nextInt(30); i > 0; i--) {
+				String line = repeat((char) ('a' + random.nextInt(26)), random.nextInt(maxLength * 2 + 3));
+				text.append(line).append(random.nextBoolean() ? "\r\n" : "\n");
+
+				if (!line.isEmpty())
+					expected.add(line.length() > maxLength ? line.substring(0, maxLength) : line);
+			}
+
+			LineReader reader = new LineReader(1 + random.nextInt(64), maxLength, OverflowPolicy.TRUNCATE);
+			int[] chunks = new int[8];
+
+			for (int i = 0; i < chunks.length; i++)
+				chunks[i] = 1 + random.nextInt(70);
+
+			assertEquals(text.toString(), expected, feed(reader, text.toString(), chunks));
+		}
+	}
+}
@@ -0,0 +1,281 @@
+/*
+ * This file is part of Rice.
+ * © Copyright Massimo Neri 2014 <hello@mneri.me>
+ *
+ * Rice is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rice is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rice. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package me.mneri.rice;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class MessageTest {
+	private static final String[] LINES = {
+			":nick!user@host PRIVMSG #chan :hello world",
+			"@time=2014-01-01T10:00:00.123Z;msgid=abc :nick!user@host PRIVMSG #chan :hi: there",
+			"PING :irc.example.net",
+			":irc.example.net 001 me :Welcome to the net",
+			":irc.example.net 005 me CASEMAPPING=rfc1459 NETWORK=Foo :are supported",
+			"@a;b=c :srv  NOTICE   * :*** Looking",
+			":nick!u@h JOIN #chan acct :Real Name",
+			":nick!u@h QUIT",
+			"CAP * LS :sasl multi-prefix",
+			":srv 353 me = #chan :@op +voice user",
+			"@k=v CMD",
+			":n!u@h MODE #c +o  x",
+			":n!u@h PRIVMSG #c ::)",
+			":n!u@h PRIVMSG #c :",
+			":n!u@h PRIVMSG #c :caffè ☕",
+			":server.only 372 me :- motd"
+	};
+
+	// The parser as it was before messages were parsed at byte level, without the time tag handling
+	private static class Baseline {
+		String command;
+		String host;
+		String nick;
+		List<String> params = new ArrayList<>();
+		Map<String, String> tags = new HashMap<>();
+		String user;
+
+		Baseline(String line) {
+			char[] buffer = line.toCharArray();
+			int start = 0;
+			int end = 0;
+			String key = null;
+			String value = null;
+
+			if (end < buffer.length && buffer[end] == '@') {
+				start = ++end;
+
+				while (end < buffer.length && buffer[end] != ' ') {
+					if (buffer[end] == '=') {
+						key = new String(buffer, start, end - start);
+						start = ++end;
+					} else if (buffer[end] == ';') {
+						if (key != null)
+							value = new String(buffer, start, end - start);
+						else
+							key = new String(buffer, start, end - start);
+
+						tags.put(key, value);
+						key = null;
+						value = null;
+						start = ++end;
+					} else {
+						end++;
+					}
+				}
+
+				if (start != end) {
+					if (key != null)
+						value = new String(buffer, start, end - start);
+					else
+						key = new String(buffer, start, end - start);
+
+					tags.put(key, value);
+				}
+
+				do {
+					end++;
+				} while (end < buffer.length && buffer[end] == ' ');
+
+				start = end;
+			}
+
+			if (end < buffer.length && buffer[end] == ':') {
+				start = ++end;
+
+				while (end < buffer.length && buffer[end] != '!' && buffer[end] != ' ')
+					end++;
+
+				nick = new String(buffer, start, end - start);
+
+				if (end < buffer.length && buffer[end] == '!') {
+					start = ++end;
+
+					while (end < buffer.length && buffer[end] != '@' && buffer[end] != ' ')
+						end++;
+
+					user = new String(buffer, start, end - start);
+				}
+
+				if (end < buffer.length && buffer[end] == '@') {
+					start = ++end;
+
+					while (end < buffer.length && buffer[end] != ' ')
+						end++;
+
+					host = new String(buffer, start, end - start);
+				}
+
+				do {
+					end++;
+				} while (end < buffer.length && buffer[end] == ' ');
+
+				start = end;
+			}
+
+			while (end < buffer.length && buffer[end] != ' ')
+				end++;
+
+			command = new String(buffer, start, end - start);
+
+			do {
+				end++;
+			} while (end < buffer.length && buffer[end] == ' ');
+
+			start = end;
+
+			if (end < buffer.length) {
+				boolean trailing = false;
+
+				do {
+					if (buffer[end] == ' ') {
+						if (start < end)
+							params.add(new String(buffer, start, end - start));
+
+						start = end + 1;
+					} else if (buffer[end] == ':') {
+						trailing = true;
+					}
+
+					end++;
+				} while (end < buffer.length && !trailing);
+
+				if (trailing)
+					start++;
+
+				params.add(new String(buffer, start, buffer.length - start));
+			}
+
+			tags.remove("time");
+		}
+	}
+
+	private static void assertSameAsBaseline(String line) {
+		Baseline expected = new Baseline(line);
+		Message message = Message.from(line);
+		Map<String, String> tags = new HashMap<>(message.getTags());
+		tags.remove("time");
+
+		assertEquals(line, expected.nick, message.getNick());
+		assertEquals(line, expected.user, message.getUser());
+		assertEquals(line, expected.host, message.getHost());
+		assertEquals(line, expected.command, message.getCommand());
+		assertEquals(line, expected.params, message.getParams());
+		assertEquals(line, expected.tags, tags);
+	}
+
+	@Test
+	public void parsesLikeBaseline() {
+		for (String line : LINES)
+			assertSameAsBaseline(line);
+	}
+
+	@Test
+	public void parsesRandomLinesLikeBaseline() {
+		Random random = new Random(42);
+		String[] words = { "nick", "n!u@h", "#chan", "PRIVMSG", "001", "a=b", "k", ":t", "::", "é", "=" };
+
+		for (int i = 0; i < 20000; i++) {
+			StringBuilder line = new StringBuilder();
+
+			if (random.nextInt(4) == 0)
+				line.append('@').append("a=1;b").append(random.nextBoolean() ? ";c=d" : "").append(' ');
+
+			if (random.nextBoolean())
+				line.append(':').append(words[random.nextInt(words.length)]).append(' ');
+
+			line.append(random.nextBoolean() ? "PRIVMSG" : "372");
+
+			for (int j = random.nextInt(5); j > 0; j--) {
+				line.append(random.nextInt(3) == 0 ? "  " : " ");
+				line.append(words[random.nextInt(words.length)]);
+			}
+
+			assertSameAsBaseline(line.toString());
+		}
+	}
+
+	// The baseline took "nick@host" for a nick and started the trailing parameter at any ':'
+	@Test
+	public void fixesBaselineQuirks() {
+		Message message = Message.from(":nick@host NOTICE me :no user");
+		assertEquals("nick", message.getNick());
+		assertEquals(null, message.getUser());
+		assertEquals("host", message.getHost());
+
+		message = Message.from("PRIVMSG #c a:b :c d");
+		assertEquals(Arrays.asList("#c", "a:b", "c d"), message.getParams());
+	}
+
+	@Test
+	public void writesInOtherCharsets() {
+		StringBuilder text = new StringBuilder();
+
+		for (int i = 0; i < 100; i++)
+			text.append("caffè \uD83D\uDE00 ");
+
+		String[] lines = { LINES[0], LINES[1], "@x=a\\s\uD83D\uDE00;y :n!u@h PRIVMSG #c :" + text };
+
+		for (String line : lines) {
+			Message message = Message.from(line);
+
+			for (Charset charset : new Charset[] { Charset.forName("UTF-16"), Charset.forName("ISO-8859-1") }) {
+				ByteBuffer buffer = ByteBuffer.allocate(4096);
+				message.writeTo(buffer, charset);
+				buffer.flip();
+
+				assertArrayEquals(line, message.toString().getBytes(charset),
+						Arrays.copyOf(buffer.array(), buffer.limit()));
+			}
+		}
+	}
+
+	@Test(expected = BufferOverflowException.class)
+	public void writeOverflows() {
+		Message.from(LINES[0]).writeTo(ByteBuffer.allocate(10), Charset.forName("UTF-16"));
+	}
+
+	@Test
+	public void copiesReadLines() {
+		byte[] buffer = "PING :a\r\n@k=v :n!u@h PRIVMSG #c :hi\r\nPING :b\r\n".getBytes(Charset.forName("UTF-8"));
+		RawLine raw = new RawLine().reset(buffer, 9, 28, Charset.forName("UTF-8"), null);
+		Message message = Message.from(raw);
+		Arrays.fill(buffer, (byte) 'x');
+
+		assertEquals("@k=v :n!u@h PRIVMSG #c hi", message.toString());
+		assertEquals("v", message.getTags().get("k"));
+	}
+
+	@Test
+	public void parsesTime() {
+		Message message = Message.from("@time=2014-01-01T10:00:00.123Z :n!u@h PRIVMSG #c :hi");
+		assertEquals(1388570400123L, message.getTime());
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * This file is part of Rice.
+ * © Copyright Massimo Neri 2014 <hello@mneri.me>
+ *
+ * Rice is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rice is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rice. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package me.mneri.rice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TagMapTest {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static String escape(String value) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		TagMap.escape(sb, value);
+		return sb.toString();
+	}
+
+	private static TagMap parse(String tags) {
+		byte[] buffer = tags.getBytes(UTF_8);
+		return TagMap.parse(buffer, 0, buffer.length, UTF_8);
+	}
+
+	private static String unescape(String value) {
+		byte[] buffer = value.getBytes(UTF_8);
+		return TagMap.unescape(buffer, 0, buffer.length, UTF_8);
+	}
+
+	@Test
+	public void escapes() throws IOException {
+		assertEquals("plain", escape("plain"));
+		assertEquals("a\\:b\\sc\\\\d\\re\\nf", escape("a;b c\\d\re\nf"));
+		assertEquals("", escape(""));
+	}
+
+	@Test
+	public void unescapes() {
+		assertEquals("plain", unescape("plain"));
+		assertEquals("a;b c\\d\re\nf", unescape("a\\:b\\sc\\\\d\\re\\nf"));
+		// Unknown escapes stand for the character itself, a trailing backslash is dropped
+		assertEquals("xb", unescape("\\xb"));
+		assertEquals("end", unescape("end\\"));
+		assertEquals("caffè ☕", unescape("caffè\\s☕"));
+	}
+
+	@Test
+	public void roundTrips() throws IOException {
+		Random random = new Random(7);
+		char[] alphabet = { 'a', 'z', ';', ' ', '\\', '\r', '\n', ':', 's', 'è', '☕' };
+
+		for (int i = 0; i < 10000; i++) {
+			char[] chars = new char[random.nextInt(12)];
+
+			for (int j = 0; j < chars.length; j++)
+				chars[j] = alphabet[random.nextInt(alphabet.length)];
+
+			String value = new String(chars);
+			String escaped = escape(value);
+
+			assertFalse(escaped.contains(";") || escaped.contains(" "));
+			assertEquals(value, unescape(escaped));
+		}
+	}
+
+	@Test
+	public void parses() {
+		TagMap tags = parse("a=1;b;c=;d=x\\sy;a=2;;e=é");
+
+		assertEquals(5, tags.size());
+		assertEquals("2", tags.get("a"));
+		assertTrue(tags.containsKey("b"));
+		assertNull(tags.get("b"));
+		assertEquals("", tags.get("c"));
+		assertEquals("x y", tags.get("d"));
+		assertEquals("é", tags.get("e"));
+		assertFalse(tags.containsKey("f"));
+		assertNull(tags.get(null));
+	}
+
+	@Test
+	public void parsesEmpty() {
+		assertEquals(0, parse("").size());
+		assertEquals(0, parse(";;").size());
+	}
+}
@@ -0,0 +1,137 @@
+/*
+ * This file is part of Rice.
+ * © Copyright Massimo Neri 2014 <hello@mneri.me>
+ *
+ * Rice is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rice is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rice. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package me.mneri.rice.flood;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Test;
+
+import me.mneri.rice.Message;
+
+public class AdaptiveFloodControllerTest {
+	private static final long WINDOW = 100;
+
+	private static AdaptiveFloodController.Builder builder() {
+		return new AdaptiveFloodController.Builder().window(WINDOW).initial(5).probeInterval(0)
+				.store(new MemoryRateStore());
+	}
+
+	private static void send(FloodController controller, int lines) {
+		for (int i = 0; i < lines; i++)
+			controller.getDelay("PRIVMSG #a :x\r\n");
+	}
+
+	@Test
+	public void increasesWhenLinesWait() throws InterruptedException {
+		AdaptiveFloodController controller = builder().build();
+
+		for (int i = 1; i <= 3; i++) {
+			send(controller, 10);
+			Thread.sleep(WINDOW + 20);
+			send(controller, 1);
+			assertEquals(5 + i, controller.getRate(), 0.001);
+		}
+	}
+
+	@Test
+	public void staysWhenIdle() throws InterruptedException {
+		AdaptiveFloodController controller = builder().build();
+		send(controller, 1);
+		Thread.sleep(WINDOW + 20);
+		send(controller, 1);
+
+		assertEquals(5, controller.getRate(), 0.001);
+	}
+
+	@Test
+	public void cutsOncePerWindow() throws InterruptedException {
+		AdaptiveFloodController controller = builder().limits(1, 50).build();
+		controller.onReceive(Message.from("ERROR :Closing Link: host (Excess Flood)"));
+
+		assertEquals(2.5, controller.getRate(), 0.001);
+		// The cut also pauses for a window
+		assertTrue(controller.getDelay("PRIVMSG #a :x\r\n") >= WINDOW);
+
+		// A burst of warnings counts once
+		controller.onReceive(Message.from(":srv 439 n #a :Target change too fast"));
+		assertEquals(2.5, controller.getRate(), 0.001);
+
+		Thread.sleep(WINDOW + 20);
+		controller.onReceive(Message.from(":srv 707 n #a :Targets changing too fast"));
+		assertEquals(1.25, controller.getRate(), 0.001);
+
+		Thread.sleep(WINDOW + 20);
+		controller.onReceive(Message.from(":srv 263 n PRIVMSG :Server load is temporarily too heavy"));
+		assertEquals(1, controller.getRate(), 0.001);
+	}
+
+	@Test
+	public void ignoresOtherErrors() {
+		AdaptiveFloodController controller = builder().build();
+		controller.onReceive(Message.from("ERROR :Closing Link: host (Quit: bye)"));
+
+		assertEquals(5, controller.getRate(), 0.001);
+	}
+
+	@Test
+	public void cutsOnSlowRoundTrip() throws InterruptedException {
+		AdaptiveFloodController controller = builder().build();
+
+		controller.getDelay("PING a1\r\n");
+		Thread.sleep(10);
+		controller.onReceive(Message.from(":srv PONG srv :a1"));
+		controller.getDelay("PING a2\r\n");
+		Thread.sleep(20);
+		controller.onReceive(Message.from(":srv PONG srv :a2"));
+		assertEquals(5, controller.getRate(), 0.001);
+
+		controller.getDelay("PING a3\r\n");
+		Thread.sleep(600);
+		controller.onReceive(Message.from(":srv PONG srv :a3"));
+		assertEquals(2.5, controller.getRate(), 0.001);
+	}
+
+	@Test
+	public void remembersRatePerNetwork() throws IOException {
+		Path file = Files.createTempFile("rates", ".properties");
+
+		try {
+			AdaptiveFloodController controller = builder().store(new FileRateStore(file)).build();
+			controller.onReceive(Message.from(":srv 005 n NETWORK=TestNet CHANTYPES=# :are supported"));
+			controller.onReceive(Message.from("ERROR :Excess Flood"));
+
+			// A later connection, in another process, to the same network
+			controller = builder().store(new FileRateStore(file)).build();
+			assertEquals(5, controller.getRate(), 0.001);
+			controller.onReceive(Message.from(":srv 005 n NETWORK=TestNet :are supported"));
+			assertEquals(2.5, controller.getRate(), 0.001);
+
+			controller = builder().store(new FileRateStore(file)).build();
+			controller.onReceive(Message.from(":srv 005 n NETWORK=OtherNet :are supported"));
+			assertEquals(5, controller.getRate(), 0.001);
+		} finally {
+			Files.delete(file);
+		}
+	}
+}
@@ -0,0 +1,120 @@
+/*
+ * This file is part of Rice.
+ * © Copyright Massimo Neri 2014 <hello@mneri.me>
+ *
+ * Rice is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rice is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rice. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package me.mneri.rice.flood;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.Charset;
+
+import org.junit.Test;
+
+public class TokenBucketFloodControllerTest {
+	@Test
+	public void allowsBurstThenSpacesLines() {
+		FloodController controller = new TokenBucketFloodController.Builder().lines(5).window(10000).build();
+
+		for (int i = 0; i < 5; i++)
+			assertEquals(0, controller.getDelay("PRIVMSG #a :x\r\n"));
+
+		assertEquals(2000, controller.getDelay("PRIVMSG #a :x\r\n"), 50);
+		assertEquals(4000, controller.getDelay("PRIVMSG #a :x\r\n"), 50);
+	}
+
+	@Test
+	public void chargesBytesAsSent() {
+		String ascii = "PRIVMSG #a :" + repeat("x", 36) + "\r\n";
+		String accented = "PRIVMSG #a :" + repeat("è", 36) + "\r\n";
+
+		// 50 bytes a line, 100 per second: the third line waits half a second
+		FloodController controller = new TokenBucketFloodController.Builder().lines(0).bytes(100).window(1000).build();
+		assertEquals(0, controller.getDelay(ascii));
+		assertEquals(0, controller.getDelay(ascii));
+		assertEquals(500, controller.getDelay(ascii), 50);
+
+		// The same number of chars is 86 bytes in UTF-8
+		controller = new TokenBucketFloodController.Builder().lines(0).bytes(100).window(1000).build();
+		assertEquals(0, controller.getDelay(accented));
+		assertEquals(720, controller.getDelay(accented), 50);
+
+		// And 50 bytes again in Latin-1, when the connection says so
+		controller = new TokenBucketFloodController.Builder().lines(0).bytes(100).window(1000).build();
+		int latin1 = accented.getBytes(Charset.forName("ISO-8859-1")).length;
+		assertEquals(0, controller.getDelay(accented, latin1));
+		assertEquals(0, controller.getDelay(accented, latin1));
+		assertEquals(500, controller.getDelay(accented, latin1), 50);
+	}
+
+	@Test
+	public void countsUtf8Length() {
+		Charset utf8 = Charset.forName("UTF-8");
+
+		for (String string : new String[] { "", "abc", "caffè", "€", "😀", "a😀b€è" })
+			assertEquals(string, string.getBytes(utf8).length, TokenBucketFloodController.utf8Length(string));
+	}
+
+	@Test
+	public void limitsTargetsAndWeighsCommands() {
+		FloodController controller = new TokenBucketFloodController.Builder().lines(20).perTarget(2, 4000)
+				.weight("JOIN", 5).build();
+
+		assertEquals(0, controller.getDelay("PRIVMSG #a :1"));
+		assertEquals(0, controller.getDelay("PRIVMSG #a :2"));
+		// Targets are case insensitive, tags are skipped
+		assertEquals(2000, controller.getDelay("@+typing=1 PRIVMSG #A :3"), 50);
+		assertEquals(0, controller.getDelay("NOTICE #b :1"));
+	}
+
+	// Lines charged from many threads at once are all accounted for
+	@Test
+	public void chargesConcurrently() throws InterruptedException {
+		FloodController controller = new TokenBucketFloodController.Builder().lines(1000).window(1000).build();
+		int count = 20000;
+		Thread[] threads = new Thread[8];
+		long start = System.nanoTime();
+
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(() -> {
+				for (int j = 0; j < count; j++)
+					controller.getDelay("PRIVMSG #a :x");
+			});
+
+			threads[i].start();
+		}
+
+		for (Thread thread : threads)
+			thread.join();
+
+		long elapsed = (System.nanoTime() - start) / 1000000;
+		long delay = controller.getDelay("PRIVMSG #a :x");
+		long expected = threads.length * count - 1000 - elapsed;
+
+		// One millisecond per line, less the burst and the time that went by
+		assertTrue(delay + " vs " + expected, Math.abs(delay - expected) <= 100);
+	}
+
+	private static String repeat(String string, int count) {
+		StringBuilder sb = new StringBuilder();
+
+		for (int i = 0; i < count; i++)
+			sb.append(string);
+
+		return sb.toString();
+	}
+}
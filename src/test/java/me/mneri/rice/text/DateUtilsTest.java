@@ -0,0 +1,84 @@
+/*
+ * This file is part of Rice.
+ * © Copyright Massimo Neri 2014 <hello@mneri.me>
+ *
+ * Rice is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rice is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rice. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package me.mneri.rice.text;
+
+import static org.junit.Assert.assertEquals;
+
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+public class DateUtilsTest {
+	private static final long INVALID = Long.MIN_VALUE;
+
+	private static long parse(String text) {
+		return DateUtils.parseIso8601(text, INVALID);
+	}
+
+	@Test
+	public void parsesFormats() {
+		assertEquals(0L, parse("1970-01-01T00:00:00Z"));
+		assertEquals(0L, parse("1970-01-01T00:00:00.000Z"));
+		assertEquals(0L, parse("1970-01-01 00:00:00"));
+		assertEquals(1388570400123L, parse("2014-01-01T10:00:00.123Z"));
+		assertEquals(1388570400123L, parse("2014-01-01T10:00:00,123456789z"));
+		assertEquals(1388570400100L, parse("2014-01-01T10:00:00.1Z"));
+		assertEquals(1388570400000L, parse("2014-01-01T12:30:00+02:30"));
+		assertEquals(1388570400000L, parse("2014-01-01T12:30:00+0230"));
+		assertEquals(1388570400000L, parse("2014-01-01T08:00:00-02"));
+		assertEquals(951782400000L, parse("2000-02-29T00:00:00Z"));
+		assertEquals(-1000L, parse("1969-12-31T23:59:59Z"));
+	}
+
+	@Test
+	public void rejectsInvalid() {
+		String[] invalid = { "", "2014-01-01", "2014-01-01T10:00", "2014/01/01T10:00:00Z", "2014-13-01T10:00:00Z",
+				"2014-00-01T10:00:00Z", "2014-04-31T10:00:00Z", "2014-02-29T10:00:00Z", "1900-02-29T10:00:00Z",
+				"2014-01-01T24:00:00Z", "2014-01-01T10:60:00Z", "2014-01-01T10:00:61Z", "2014-01-01T10:00:00.Z",
+				"2014-01-01T10:00:00ZZ", "2014-01-01T10:00:00+1", "2014-01-01T10:00:00+24:00",
+				"2014-01-01T10:00:00+02:3", "2014-01-01T10:00:00X", "2O14-01-01T10:00:00Z", "2014-01-01T10:00:00Zè" };
+
+		for (String text : invalid)
+			assertEquals(text, INVALID, parse(text));
+	}
+
+	@Test
+	public void parsesLikeSimpleDateFormat() {
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		Random random = new Random(3);
+
+		for (int i = 0; i < 10000; i++) {
+			// Between 1970 and 2100
+			long time = (long) (random.nextDouble() * 4102444800000L);
+			String text = format.format(time);
+
+			assertEquals(text, time, parse(text));
+		}
+	}
+
+	@Test
+	public void parsesBytes() {
+		byte[] buffer = "time=2014-01-01T10:00:00.123Z;".getBytes();
+		assertEquals(1388570400123L, DateUtils.parseIso8601(buffer, 5, 24, INVALID));
+	}
+}
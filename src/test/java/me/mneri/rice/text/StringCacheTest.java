@@ -0,0 +1,69 @@
+/*
+ * This file is part of Rice.
+ * © Copyright Massimo Neri 2014 <hello@mneri.me>
+ *
+ * Rice is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rice is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rice. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package me.mneri.rice.text;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.nio.charset.Charset;
+
+import org.junit.Test;
+
+public class StringCacheTest {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static String get(StringCache cache, String string) {
+		byte[] bytes = ("x" + string + "y").getBytes(UTF_8);
+		return cache.get(bytes, 1, bytes.length - 2, UTF_8);
+	}
+
+	@Test
+	public void returnsSameInstance() {
+		StringCache cache = new StringCache(64, StringCache.Eviction.LEAST_RECENTLY_USED);
+		String first = get(cache, "nick");
+
+		assertEquals("nick", first);
+		assertSame(first, get(cache, "nick"));
+		assertNotSame(first, get(cache, "other"));
+	}
+
+	// A single set: the entry used since the last miss survives, the others go in order
+	@Test
+	public void evictsLeastRecentlyUsed() {
+		StringCache cache = new StringCache(4, StringCache.Eviction.LEAST_RECENTLY_USED);
+		String hot = get(cache, "hot");
+
+		for (int i = 0; i < 100; i++) {
+			get(cache, "cold" + i);
+			assertSame(hot, get(cache, "hot"));
+		}
+	}
+
+	@Test
+	public void evictsFirstInFirstOut() {
+		StringCache cache = new StringCache(4, StringCache.Eviction.FIRST_IN_FIRST_OUT);
+		String first = get(cache, "first");
+
+		for (int i = 0; i < 4; i++)
+			get(cache, "n" + i);
+
+		assertNotSame(first, get(cache, "first"));
+	}
+}